@@ -0,0 +1,96 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The list built-ins against the same functions written in the language. The interpreted ones
+ * are tail recursive, building their results with append and reversing them at the end, so
+ * they run on lists of any length; map and length in inbuilt/data.fl used to recurse as deep
+ * as the list. Setup checks that both give the same results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BulkListBenchmark {
+    static final String[] INTERPRETED = {
+        "(define lengthloop (lambda (l n) ((l) ? (lengthloop (second l) (+ n 1)) : n)))",
+        "(define ilength (lambda (l) (lengthloop l 0)))",
+        "(define sumloop (lambda (l acc) ((l) ? (sumloop (second l) (+ acc (first l))) : acc)))",
+        "(define isum (lambda (l) (sumloop l 0)))",
+        "(define reverseloop (lambda (l acc) ((l) ? (reverseloop (second l) (append (first l) acc)) : acc)))",
+        "(define ireverse (lambda (l) (reverseloop l (list))))",
+        "(define maploop (lambda (op l acc) ((l) ? (let ((y (op (first l)))) (maploop op (second l) (append y acc))) : (ireverse acc))))",
+        "(define imap (lambda (op l) (maploop op l (list))))",
+        "(define filterloop (lambda (p l acc) ((l) ? ((p (first l)) ? (filterloop p (second l) (append (first l) acc)) : (filterloop p (second l) acc)) : (ireverse acc))))",
+        "(define ifilter (lambda (p l) (filterloop p l (list))))",
+        "(define ifold (lambda (op acc l) ((l) ? (let ((a (op acc (first l)))) (ifold op a (second l))) : acc)))",
+    };
+
+    @Param({"evaluator", "compiler"})
+    String backend;
+
+    @Param({"native", "interpreted"})
+    String impl;
+
+    @Param({"1000", "100000"})
+    int size;
+
+    Backend eval;
+    AST.Program map, filter, fold, sum, length, reverse;
+
+    @Setup
+    public void setup() {
+        eval = Programs.withPrelude(Programs.backend(backend), INTERPRETED);
+        eval.valueOf(Programs.parse(Programs.BUILD));
+        eval.valueOf(Programs.parse("(define l (build " + size + " (list)))"));
+
+        String p = impl.equals("native") ? "" : "i";
+        map = Programs.parse("(" + p + "map (lambda (x) (* x x)) l)");
+        filter = Programs.parse("(" + p + "filter (lambda (x) (< x " + size / 2 + ")) l)");
+        fold = Programs.parse("(" + p + "fold (lambda (a x) (+ a x)) 0 l)");
+        sum = Programs.parse("(" + p + "sum l)");
+        length = Programs.parse("(" + p + "length l)");
+        reverse = Programs.parse("(" + p + "reverse l)");
+
+        for (String f : new String[]{"map (lambda (x) (* x x)) l", "filter (lambda (x) (< x 10)) l", "fold (lambda (a x) (+ a x)) 0 l", "sum l", "length l", "reverse l"}) {
+            String expected = eval.valueOf(Programs.parse("(" + f + ")")).toString();
+            String actual = eval.valueOf(Programs.parse("(i" + f + ")")).toString();
+            if (!expected.equals(actual)) throw new IllegalStateException("(" + f + ") differs: " + expected + " and " + actual);
+        }
+    }
+
+    @Benchmark
+    public Value map() {
+        return eval.valueOf(map);
+    }
+
+    @Benchmark
+    public Value filter() {
+        return eval.valueOf(filter);
+    }
+
+    @Benchmark
+    public Value fold() {
+        return eval.valueOf(fold);
+    }
+
+    @Benchmark
+    public Value sum() {
+        return eval.valueOf(sum);
+    }
+
+    @Benchmark
+    public Value length() {
+        return eval.valueOf(length);
+    }
+
+    @Benchmark
+    public Value reverse() {
+        return eval.valueOf(reverse);
+    }
+}
@@ -0,0 +1,77 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A list of closures, each made in a let that also binds a list of 1000 numbers it does not use.
+ * Resolved, a closure captures only the number it adds; unresolved, it keeps the env it was made
+ * in, and the list with it. The heap the closures retain after a collection is reported as the
+ * retainedKB counter. It is evaluated call by value: call by need would pass the accumulator as
+ * a chain of a thousand promises, forced recursively at the end, and overflow the stack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ClosureBenchmark {
+    static final String MAKE = "(define make (lambda (n) (let ((data (list " + Programs.numbers(1000) + ")) (k n))"
+            + " ((= (first data) 0) ? 0 : (lambda (x) (+ x k))))))";
+    static final String KEEP = "(define keep (lambda (n acc) ((= n 0) ? acc : (keep (- n 1) (append (make n) acc)))))";
+
+    @Param({"true", "false"})
+    boolean resolved;
+
+    @Param({"1000"})
+    int closures;
+
+    Evaluator eval;
+    AST.Program keep;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private long before;
+        public long retainedKB;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            before = memory.getHeapMemoryUsage().getUsed();
+        }
+
+        void record(Object retained) {
+            System.gc();
+            retainedKB = (memory.getHeapMemoryUsage().getUsed() - before) >> 10;
+            Reference.reachabilityFence(retained);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        eval = Programs.withPrelude(new Evaluator(Evaluator.Strategy.VALUE));
+        // parsed apart from the cache, so that the definitions run unresolved have not been resolved
+        for (String def : new String[] {MAKE, KEEP}) {
+            AST.Program p = DescentParser.parse(def);
+            (resolved ? Resolver.resolve(p) : p).accept(eval, eval.globals());
+        }
+        keep = DescentParser.parse("(keep " + closures + " (list))");
+        keep = new AST.Program(List.of(), keep.e());
+        if (resolved) Resolver.resolve(keep);
+    }
+
+    @Benchmark
+    public Value closures(Heap heap) {
+        Value list = (Value) keep.accept(eval, eval.globals());
+        heap.record(list);
+        return list;
+    }
+}
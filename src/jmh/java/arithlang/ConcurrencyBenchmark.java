@@ -0,0 +1,44 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads evaluating programs against one Evaluator and its shared global definitions.
+ * Compare the throughput per thread count to see how evaluation scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrencyBenchmark {
+    Evaluator eval;
+    AST.Program program;
+
+    @Setup
+    public void setup() {
+        eval = Programs.withPrelude(new Evaluator(), Programs.SQUARES);
+        program = Programs.parse("(+ (squares (list " + Programs.numbers(50) + ")) (identity 1) ((even 100) ? 1 : 0))");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Value oneThread() {
+        return eval.valueOf(program);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Value fourThreads() {
+        return eval.valueOf(program);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Value allThreads() {
+        return eval.valueOf(program);
+    }
+}
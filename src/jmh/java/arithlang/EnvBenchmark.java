@@ -0,0 +1,73 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variable lookup with the binding `depth` frames away: by lexical address and by name on a
+ * chain of frames, and through a program of nested lets. Globals are read by slot and by name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnvBenchmark {
+    @Param({"0", "8", "32"})
+    int depth;
+
+    Env.FrameEnv frame;
+    Env.GlobalEnv globals;
+    int slot;
+    Evaluator eval;
+    AST.Program nestedLets;
+
+    @Setup
+    public void setup() {
+        globals = new Env.GlobalEnv();
+        globals.extend("benchmarkGlobal", Value.NumVal.valueOf(1));
+        slot = Env.GlobalEnv.slotOf("benchmarkGlobal");
+
+        Env env = globals;
+        for (int i = 0; i <= depth; i++) {
+            env = new Env.FrameEnv(env, new String[]{"v" + i}, new Value[]{Value.NumVal.valueOf(i)});
+        }
+        frame = (Env.FrameEnv) env;
+
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i <= depth; i++) program.append("(let ((v").append(i).append(' ').append(i).append(")) ");
+        program.append("(+");
+        for (int i = 0; i < 100; i++) program.append(" v0");
+        program.append(")").append(")".repeat(depth + 1));
+        eval = new Evaluator();
+        nestedLets = Programs.parse(program.toString());
+    }
+
+    @Benchmark
+    public Value lookupByAddress() {
+        return frame.get(depth, 0);
+    }
+
+    @Benchmark
+    public Value lookupByName() {
+        return frame.get("v0");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public Value nestedLets() {
+        return eval.valueOf(nestedLets);
+    }
+
+    @Benchmark
+    public Value globalBySlot() {
+        return globals.get(slot);
+    }
+
+    @Benchmark
+    public Value globalByName() {
+        return globals.get("benchmarkGlobal");
+    }
+}
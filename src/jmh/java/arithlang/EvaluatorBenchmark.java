@@ -0,0 +1,79 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation hot paths on both backends: arithmetic and comparisons in a tail recursive loop,
+ * deep non-tail recursion through CallExp, list building with ListExp and AppendExp, the map
+ * built-in calling a lambda, and the length and nth built-ins on a list of 100000 elements. Run
+ * with the gc profiler to see allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EvaluatorBenchmark {
+    @Param({"evaluator", "compiler"})
+    String backend;
+
+    Backend eval;
+    AST.Program arithmetic, comparisons, recursion, listLiteral, append, mapLength, length, nth;
+
+    @Setup
+    public void setup() {
+        eval = Programs.withPrelude(Programs.backend(backend), Programs.POLY, Programs.COUNT, Programs.BUILD, Programs.SQUARES, Programs.BETWEEN);
+        arithmetic = Programs.parse("(poly 7 10000 0)");
+        comparisons = Programs.parse("(between 100 0 5000 10000 0)");
+        recursion = Programs.parse("(count 500)");
+        listLiteral = Programs.parse("(list " + Programs.numbers(1000) + ")");
+        append = Programs.parse("(length (build 1000 (list)))");
+        mapLength = Programs.parse("(squares (list " + Programs.numbers(200) + "))");
+        eval.valueOf(Programs.parse("(define large (build 100000 (list)))"));
+        length = Programs.parse("(length large)");
+        nth = Programs.parse("(nth large 54321)");
+    }
+
+    @Benchmark
+    public Value arithmetic() {
+        return eval.valueOf(arithmetic);
+    }
+
+    @Benchmark
+    public Value comparisons() {
+        return eval.valueOf(comparisons);
+    }
+
+    @Benchmark
+    public Value deepRecursion() {
+        return eval.valueOf(recursion);
+    }
+
+    @Benchmark
+    public Value listLiteral() {
+        return eval.valueOf(listLiteral);
+    }
+
+    @Benchmark
+    public Value appendLoop() {
+        return eval.valueOf(append);
+    }
+
+    @Benchmark
+    public Value mapLength() {
+        return eval.valueOf(mapLength);
+    }
+
+    @Benchmark
+    public Value lengthOfLarge() {
+        return eval.valueOf(length);
+    }
+
+    @Benchmark
+    public Value nthOfLarge() {
+        return eval.valueOf(nth);
+    }
+}
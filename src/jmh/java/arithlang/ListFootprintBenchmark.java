@@ -0,0 +1,57 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The memory taken by lists of numbers, which are packed into double[] chunks, and of other
+ * values. Setup prints the bytes per element a list retains, measured with JOL; the benchmarks
+ * build the lists by consing and from a literal, run with the gc profiler to see what building
+ * them allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ListFootprintBenchmark {
+    @Param({"numbers", "booleans"})
+    String kind;
+
+    @Param({"100000"})
+    int size;
+
+    Evaluator eval;
+    AST.Program consed, literal;
+
+    @Setup
+    public void setup() {
+        String item = kind.equals("numbers") ? "n" : "(< n 0)";
+        eval = Programs.withPrelude(new Evaluator(), "(define build (lambda (n acc) ((= n 0) ? acc : (build (- n 1) (append " + item + " acc)))))");
+        consed = Programs.parse("(build " + size + " (list))");
+        StringBuilder sb = new StringBuilder("(list");
+        for (int i = 0; i < size; i++) sb.append(kind.equals("numbers") ? " " + i : (i % 2 == 0 ? " #t\n" : " #f\n"));
+        literal = Programs.parse(sb.append(")").toString());
+
+        report("consed", eval.valueOf(consed));
+        report("literal", eval.valueOf(literal));
+    }
+
+    private void report(String how, Value list) {
+        GraphLayout layout = GraphLayout.parseInstance(list);
+        System.out.printf("%n%s list of %d %s: %d bytes, %.1f bytes per element%n", how, size, kind, layout.totalSize(), (double) layout.totalSize() / size);
+    }
+
+    @Benchmark
+    public Value consed() {
+        return eval.valueOf(consed);
+    }
+
+    @Benchmark
+    public Value literal() {
+        return eval.valueOf(literal);
+    }
+}
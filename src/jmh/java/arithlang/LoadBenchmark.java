@@ -0,0 +1,89 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a file holding a large list literal by mapping it, as run does, and by reading it
+ * into a String a line at a time first, as run used to. Each load is timed once, and the peak
+ * heap it reached is reported as the peakHeapMB counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class LoadBenchmark {
+    @Param({"1", "100"})
+    int megabytes;
+
+    Reader reader;
+    Path file;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long peakHeapMB;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) pool.resetPeakUsage();
+        }
+
+        @TearDown(Level.Invocation)
+        public void record() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+            }
+            peakHeapMB = peak >> 20;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        reader = new Reader();
+        file = Files.createTempFile("load", ".scm");
+        long size = (long) megabytes << 20;
+        try (Writer out = Files.newBufferedWriter(file)) {
+            out.write("(define data (list");
+            for (long i = 0, written = 0; written < size; i++) {
+                String item = (i % 20 == 0 ? "\n" : " ") + i;
+                out.write(item);
+                written += item.length();
+            }
+            out.write("))\n(length data)\n");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public AST.Program mapped(Heap heap) throws IOException {
+        return reader.load(file);
+    }
+
+    @Benchmark
+    public AST.Program lines(Heap heap) throws IOException {
+        Reader.cache().clear();
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            StringBuilder sb = new StringBuilder();
+            for (String line = in.readLine(); line != null; line = in.readLine()) sb.append(line).append(System.lineSeparator());
+            return reader.parse(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loop full of constant arithmetic and references to constant globals, evaluated as parsed
+ * and as the Optimizer rewrites it, and the cost of the pass itself on a large program.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OptimizerBenchmark {
+    static final String CONSTANTS = "(define scale 1000) (define step (* 2 (+ 1 2)))\n"
+            + "(define f (lambda (n acc) ((= n 0) ? acc : (f (- n 1) (+ acc (* scale (/ 1 4)) (- step (* 2 3)))))))";
+
+    @Param({"false", "true"})
+    boolean optimized;
+
+    Evaluator eval;
+    AST.Program loop;
+    AST.Program large;
+
+    @Setup
+    public void setup() {
+        eval = new Evaluator();
+        // parsed apart from the cache, so that the program run unoptimized has not been rewritten
+        AST.Program p = DescentParser.parse(CONSTANTS + "\n(f 10000 0)");
+        if (optimized) p = Optimizer.optimize(p);
+        Resolver.resolve(p).accept(eval, eval.globals());
+        loop = Resolver.resolve(new AST.Program(List.of(), p.e()));
+        large = DescentParser.parse(Programs.large(2000));
+    }
+
+    @Benchmark
+    public Value loop() {
+        return (Value) loop.accept(eval, eval.globals());
+    }
+
+    @Benchmark
+    public AST.Program optimize() {
+        // a new program each time, as the one optimized keeps what it was optimized to
+        return Optimizer.optimize(new AST.Program(large.defs(), large.e()));
+    }
+}
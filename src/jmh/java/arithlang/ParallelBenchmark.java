@@ -0,0 +1,58 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parallel evaluation of operands across pool sizes; 0 threads evaluates everything on the
+ * calling thread. wideSum adds four independent recursive calls, fib forks inside its own
+ * recursion, and cheapList has elements too small to be worth forking, showing the overhead of
+ * the cost heuristic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParallelBenchmark {
+    static final String FIB = "(define fib (lambda (n) ((< n 2) ? n : (+ (fib (- n 1)) (fib (- n 2))))))";
+
+    @Param({"0", "1", "2", "4", "8"})
+    int threads;
+
+    ForkJoinPool pool;
+    Evaluator eval;
+    AST.Program wideSum, fib, cheapList;
+
+    @Setup
+    public void setup() {
+        pool = threads == 0 ? null : new ForkJoinPool(threads);
+        eval = Programs.withPrelude(new Evaluator(Evaluator.Strategy.NEED, pool), FIB, Programs.COUNT);
+        wideSum = Programs.parse("(+ (fib 18) (fib 19) (fib 20) (fib 21))");
+        fib = Programs.parse("(fib 22)");
+        cheapList = Programs.parse("(list (count 3) (count 4) (count 5) (count 6))");
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    @Benchmark
+    public Value wideSum() {
+        return eval.valueOf(wideSum);
+    }
+
+    @Benchmark
+    public Value fib() {
+        return eval.valueOf(fib);
+    }
+
+    @Benchmark
+    public Value cheapList() {
+        return eval.valueOf(cheapList);
+    }
+}
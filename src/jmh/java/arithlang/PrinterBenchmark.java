@@ -0,0 +1,33 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Printer.Formatter turning large ASTs back into text. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PrinterBenchmark {
+    @Param({"100", "2000"})
+    int defs;
+
+    Printer.Formatter formatter;
+    AST.Program program;
+    Env env;
+
+    @Setup
+    public void setup() {
+        formatter = new Printer.Formatter();
+        program = Programs.parse(Programs.large(defs));
+        env = new Env.EmptyEnv();
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.visit(program, env);
+    }
+}
@@ -0,0 +1,48 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of profiling: fib, which visits several nodes per call, and a loop of tail calls,
+ * evaluated by a plain Evaluator and by one a Profiler samples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProfilerBenchmark {
+    @Param({"false", "true"})
+    boolean profiled;
+
+    Profiler profiler;
+    Evaluator eval;
+    AST.Program fib, loop;
+
+    @Setup
+    public void setup() {
+        profiler = new Profiler();
+        eval = Programs.withPrelude(profiled ? profiler.evaluator(Evaluator.Strategy.NEED, null) : new Evaluator(),
+                ParallelBenchmark.FIB, Programs.POLY);
+        fib = Programs.parse("(fib 20)");
+        loop = Programs.parse("(poly 2 10000 0)");
+    }
+
+    @TearDown
+    public void tearDown() {
+        profiler.close();
+    }
+
+    @Benchmark
+    public Value fib() {
+        return eval.valueOf(fib);
+    }
+
+    @Benchmark
+    public Value loop() {
+        return eval.valueOf(loop);
+    }
+}
@@ -0,0 +1,69 @@
+package arithlang;
+
+import arithlang.AST.Program;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Programs shared by the benchmarks. Files are read from the examples directory, relative to
+ * the project directory the jmh task runs in.
+ */
+final class Programs {
+    static final String[] PRELUDE = {"inbuilt/math.fl", "inbuilt/identity.fl", "inbuilt/data.fl"};
+
+    static final String POLY = "(define poly (lambda (x n acc) ((= n 0) ? acc : (poly x (- n 1) (+ acc (* 3 x x) (* 2 x) 1)))))";
+    static final String COUNT = "(define count (lambda (n) ((= n 0) ? 0 : (+ 1 (count (- n 1))))))";
+    static final String BUILD = "(define build (lambda (n acc) ((= n 0) ? acc : (build (- n 1) (append n acc)))))";
+    static final String SQUARES = "(define squares (lambda (l) (length (map (lambda (x) (* x x)) l))))";
+    static final String BETWEEN = "(define between (lambda (lo x hi n acc) ((= n 0) ? acc : ((< lo x hi) ? (between lo (+ x 1) hi (- n 1) (+ acc 1)) : (between lo (+ x 1) hi (- n 1) acc)))))";
+
+    private static final Reader reader = new Reader();
+
+    private Programs() {}
+
+    static Program parse(String text) {
+        return reader.parse(text);
+    }
+
+    static Program file(String name) {
+        try {
+            return reader.run("run " + name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Returns backend after loading the inbuilt definitions and the given ones into it. */
+    static <B extends Backend> B withPrelude(B backend, String... defs) {
+        for (String f : PRELUDE) backend.valueOf(file(f));
+        for (String d : defs) backend.valueOf(parse(d));
+        return backend;
+    }
+
+    static Backend backend(String name) {
+        return switch (name) {
+            case "evaluator" -> new Evaluator();
+            case "compiler" -> new Compiler();
+            default -> throw new IllegalArgumentException(name);
+        };
+    }
+
+    static String numbers(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= n; i++) sb.append(i).append(' ');
+        return sb.toString();
+    }
+
+    /** A program of n definitions of small functions followed by a list calling each of them. */
+    static String large(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("(define f").append(i).append(" (lambda (x y) (let ((a (* x ").append(i)
+                    .append(")) (b (- y ").append(i).append("))) ((< a b) ? (+ a b 1.5) : (/ a (- b 2))))))\n");
+        }
+        sb.append("(list");
+        for (int i = 0; i < n; i++) sb.append(" (f").append(i).append(' ').append(i).append(" (- 3))");
+        return sb.append(")\n").toString();
+    }
+}
@@ -0,0 +1,53 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader.parse on programs from a one line expression to tens of thousands of definitions,
+ * parsed by the hand-written parser and by ANTLR each time, and answered from the parse cache,
+ * by one thread and by eight at once. The text starts in the cache, rather than eight threads
+ * all missing and parsing it at once. That both parsers give the same programs is checked by
+ * the build, see ParserCheck.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReaderBenchmark {
+    @Param({"DESCENT", "ANTLR"})
+    Reader.Parser parser;
+
+    @Param({"1", "100", "2000", "50000"})
+    int defs;
+
+    Reader reader;
+    String text;
+
+    @Setup
+    public void setup() {
+        reader = new Reader(parser);
+        text = Programs.large(defs);
+        reader.parse(text);
+    }
+
+    @Benchmark
+    public AST.Program parse() {
+        Reader.cache().clear();
+        return reader.parse(text);
+    }
+
+    @Benchmark
+    public AST.Program cachedParse() {
+        return reader.parse(text);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AST.Program sharedCachedParse() {
+        return reader.parse(text);
+    }
+}
@@ -0,0 +1,96 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of a small request to a Server over loopback TCP and a Unix domain socket, each
+ * benchmark thread being a client with a session of its own. Compare the thread counts to see
+ * how sessions scale.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServerBenchmark {
+    @State(Scope.Benchmark)
+    public static class Running {
+        @Param({"tcp", "unix"})
+        String transport;
+
+        Server server;
+        SocketAddress address;
+
+        @Setup
+        public void setup() throws IOException {
+            String bind = transport.equals("tcp") ? "--port=0" : "--socket=" + Files.createTempDirectory("server").resolve("lang.sock");
+            var channel = Server.bind(new String[]{bind});
+            address = channel.getLocalAddress();
+            server = new Server(new Reader(), Programs.withPrelude(new Evaluator()), channel, 64, 64);
+            new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).start();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        SocketChannel channel;
+        BufferedReader in;
+        Writer out;
+
+        @Setup
+        public void setup(Running running) throws IOException {
+            channel = running.address instanceof UnixDomainSocketAddress a ? SocketChannel.open(a) : SocketChannel.open(running.address);
+            in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+            request("(define sq (lambda (x) (* x x)))");
+        }
+
+        String request(String program) throws IOException {
+            out.write(program);
+            out.write('\n');
+            out.flush();
+            return in.readLine();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String oneClient(Session session) throws IOException {
+        return session.request("(sq 12)");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String eightClients(Session session) throws IOException {
+        return session.request("(sq 12)");
+    }
+}
@@ -0,0 +1,54 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Loading the inbuilt definitions into a new Evaluator from source and from a snapshot. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StartupBenchmark {
+    Reader reader;
+    Path snapshot;
+
+    @Setup
+    public void setup() throws IOException {
+        reader = new Reader();
+        Evaluator eval = new Evaluator();
+        List<AST.Program> programs = new ArrayList<>();
+        for (String f : Programs.PRELUDE) {
+            programs.add(Programs.file(f));
+            eval.valueOf(programs.get(programs.size() - 1));
+        }
+        snapshot = Files.createTempFile("prelude", ".snapshot");
+        Snapshot.write(snapshot, 0, programs, eval.globals());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public Evaluator fromSource() throws IOException {
+        Evaluator eval = new Evaluator();
+        for (String f : Programs.PRELUDE) eval.valueOf(reader.run("run " + f));
+        return eval;
+    }
+
+    @Benchmark
+    public Evaluator fromSnapshot() throws IOException {
+        Evaluator eval = new Evaluator();
+        Snapshot.read(snapshot, 0).load(eval);
+        return eval;
+    }
+}
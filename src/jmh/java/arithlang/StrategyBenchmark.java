@@ -0,0 +1,48 @@
+package arithlang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls under each parameter passing strategy of the Evaluator: examples/lists.scm, a call using
+ * both of its expensive arguments, which FUTURE evaluates in parallel, and a call ignoring its
+ * expensive argument, whose speculation FUTURE cancels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StrategyBenchmark {
+    @Param({"NEED", "NAME", "VALUE", "FUTURE"})
+    Evaluator.Strategy strategy;
+
+    Evaluator eval;
+    AST.Program lists, usedArguments, unusedArgument;
+
+    @Setup
+    public void setup() {
+        eval = Programs.withPrelude(new Evaluator(strategy), ParallelBenchmark.FIB,
+                "(define both (lambda (a b) (+ a b)))", "(define neither (lambda (a b) b))");
+        lists = Programs.file("lists.scm");
+        usedArguments = Programs.parse("(both (fib 20) (fib 21))");
+        unusedArgument = Programs.parse("(neither (fib 20) 1)");
+    }
+
+    @Benchmark
+    public Value lists() {
+        return eval.valueOf(lists);
+    }
+
+    @Benchmark
+    public Value usedArguments() {
+        return eval.valueOf(usedArguments);
+    }
+
+    @Benchmark
+    public Value unusedArgument() {
+        return eval.valueOf(unusedArgument);
+    }
+}
@@ -1,6 +1,8 @@
 package arithlang;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This class hierarchy represents expressions in the abstract syntax tree
@@ -73,6 +75,9 @@ public interface AST {
     class Program extends ASTNode {
         private final Exp _e;
         private final List<DefDecl> _defs;
+        private volatile boolean _resolved;
+        // the program the Optimizer made of this one
+        private volatile Program _optimized;
 
         public Program(List<DefDecl> defs, Exp e) {
             _defs = Objects.requireNonNull(defs, "Defs List cannot be Null");
@@ -83,6 +88,10 @@ public interface AST {
             return _e;
         }
         public List<DefDecl> defs() { return _defs; }
+        public boolean resolved() { return _resolved; }
+        public void markResolved() { _resolved = true; }
+        public Program optimized() { return _optimized; }
+        public void setOptimized(Program p) { _optimized = p; }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -116,6 +125,10 @@ public interface AST {
 
     abstract class CompoundExp extends Exp {
         private final List<Exp> _rep;
+        private static final AtomicReferenceFieldUpdater<CompoundExp, Node> NODE =
+                AtomicReferenceFieldUpdater.newUpdater(CompoundExp.class, Node.class, "_node");
+        // executable node tree the Evaluator builds for this expression, see Node
+        private volatile Node _node;
 
         public CompoundExp(List<Exp> args) {
             _rep = Objects.requireNonNull(args, "CompoundExp arguments cannot be Null");
@@ -124,6 +137,10 @@ public interface AST {
         public List<Exp> all() {
             return _rep;
         }
+
+        public Node node() { return _node; }
+        public void setNode(Node node) { _node = node; }
+        public boolean casNode(Node expect, Node node) { return NODE.compareAndSet(this, expect, node); }
     }
 
      abstract class CompoundArithExp extends CompoundExp {
@@ -136,7 +153,7 @@ public interface AST {
         private final Value.NumVal _val;
 
         public NumExp(double v) {
-            _val = new Value.NumVal(v);
+            _val = Value.NumVal.valueOf(v);
         }
 
         public Value.NumVal v() {
@@ -209,12 +226,32 @@ public interface AST {
 
     class VarExp extends Exp {
         private final String _name;
+        // Lexical address filled in by the Resolver: a (depth, index) pair into the enclosing
+        // Env.FrameEnv chain, or when depth is GLOBAL the slot of the name in Env.GlobalEnv, which
+        // is -1 while no table has defined the name and then filled in by slot().
+        public static final int UNRESOLVED = -2;
+        public static final int GLOBAL = -1;
+        private int _depth = UNRESOLVED;
+        private int _index;
 
         public VarExp(String name) {
             _name = Objects.requireNonNull(name, "Variable Name cannot be Null");
         }
 
         public String name() { return _name; }
+        public int depth() { return _depth; }
+        public int index() { return _index; }
+        public void setAddress(int depth, int index) {
+            _depth = depth;
+            _index = index;
+        }
+        /** The slot of a GLOBAL, looked up by name until some table has defined it, -1 before. */
+        public int slot() {
+            int slot = _index;
+            // a name keeps its slot for good, so racing threads all store the same one
+            if (slot < 0 && (slot = Env.GlobalEnv.slotOf(_name)) >= 0) _index = slot;
+            return slot;
+        }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -223,13 +260,19 @@ public interface AST {
     class LetExp extends Exp {
         private final LinkedHashMap<String, Exp> _decl;
         private final Exp _body;
+        private final String[] _names;
+        private final Exp[] _exps;
 
         public LetExp(LinkedHashMap<String, Exp> map, Exp body) {
             this._decl = Objects.requireNonNull(map, "Let 'list of assignments' cannot be Null");
             this._body = Objects.requireNonNull(body, "Let Body cannot be Null");
+            this._names = map.keySet().toArray(new String[0]);
+            this._exps = map.values().toArray(new Exp[0]);
         }
 
         public LinkedHashMap<String, Exp> getDeclaration(){ return _decl; }
+        public String[] names(){ return _names; }
+        public Exp[] exps(){ return _exps; }
         public Exp getBody(){ return _body; }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
@@ -239,14 +282,31 @@ public interface AST {
     class LambdaExp extends Exp {
         private final ArrayList<String> _params;
         private final Exp _body;
+        private final String[] _names;
+        // Filled in by the Resolver: the names the body uses from the scopes around the lambda,
+        // and their (depth, index) addresses there, which a FuncVal captures. Null until then.
+        private String[] _captured;
+        private int[] _captureDepths;
+        private int[] _captureIndexes;
 
         public LambdaExp(ArrayList<String> params, Exp body) {
             this._params = Objects.requireNonNull(params, "Lambda params cannot be Null");
             this._body = Objects.requireNonNull(body, "Lambda Body cannot be Null");
+            this._names = params.toArray(new String[0]);
         }
 
         public ArrayList<String> params(){ return _params; }
+        public String[] names(){ return _names; }
         public Exp body(){ return _body; }
+        public String[] captured(){ return _captured; }
+        public int[] captureDepths(){ return _captureDepths; }
+        public int[] captureIndexes(){ return _captureIndexes; }
+        public void setCaptures(String[] names, int[] depths, int[] indexes) {
+            _captureDepths = depths;
+            _captureIndexes = indexes;
+            // published last, as it is what readers check
+            _captured = names;
+        }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -255,6 +315,11 @@ public interface AST {
     class CallExp extends Exp {
         private final Exp _e;
         private final ArrayList<Exp> _args;
+        // The global function last called here, which passed the checks of the call, see
+        // Evaluator.callee. The node is shared by every session through the parse cache, so the
+        // function is held weakly and does not keep a finished session's closures alive. Any
+        // thread may set it; each value it can see is a valid one.
+        private WeakReference<Value.FuncVal> _callee;
 
         public CallExp(Exp e, ArrayList<Exp> args) {
             _e = Objects.requireNonNull(e, "Callable Exp cannot be Null");
@@ -263,6 +328,11 @@ public interface AST {
 
         public Exp e() { return _e; }
         public ArrayList<Exp> args() { return _args; }
+        public Value.FuncVal callee() {
+            WeakReference<Value.FuncVal> callee = _callee;
+            return callee == null ? null : callee.get();
+        }
+        public void setCallee(Value.FuncVal callee) { _callee = new WeakReference<>(callee); }
         public Object accept(Visitor visitor, Env env){
             return visitor.visit(this, env);
         }
@@ -364,6 +434,8 @@ public interface AST {
     class PairExp extends Exp {
         private final Exp _f;
         private final Exp _s;
+        // see ListExp
+        private Parallel.Site _site;
 
         public PairExp(Exp f, Exp s) {
             _f = Objects.requireNonNull(f, "Pair First Exp cannot be Null");
@@ -372,6 +444,11 @@ public interface AST {
 
         public Exp first() { return _f; }
         public Exp second() { return _s; }
+        Parallel.Site site() {
+            Parallel.Site site = _site;
+            if (site == null) _site = site = new Parallel.Site(List.of(_f, _s));
+            return site;
+        }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -405,12 +482,19 @@ public interface AST {
 
     class ListExp extends Exp {
         private final ArrayList<Exp> _list;
+        // what the Evaluator knows about evaluating the elements in parallel, see Parallel
+        private Parallel.Site _site;
 
         public ListExp(ArrayList<Exp> list) {
             _list = Objects.requireNonNull(list, "List of Exp cannot be Null");
         }
 
         public ArrayList<Exp> all() { return _list; }
+        Parallel.Site site() {
+            Parallel.Site site = _site;
+            if (site == null) _site = site = new Parallel.Site(_list);
+            return site;
+        }
         public Object accept(Visitor visitor, Env env) {
             return visitor.visit(this, env);
         }
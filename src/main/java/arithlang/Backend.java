@@ -0,0 +1,11 @@
+package arithlang;
+
+import arithlang.AST.Program;
+
+/**
+ * A way of running programs. The Evaluator walks the AST, the Compiler turns it into JVM
+ * bytecode; both keep their own global definitions across calls.
+ */
+public interface Backend {
+    Value valueOf(Program p);
+}
@@ -0,0 +1,167 @@
+package arithlang;
+
+import arithlang.AST.Program;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs a batch of program files concurrently. Each program is evaluated by an Evaluator of its
+ * own, forked from one that has run the inbuilt definitions, so programs share those but not
+ * their own definitions, and can run in any order.
+ *
+ * Results are written in the order of the files, one line each: the file, "ok" or "error", the
+ * microseconds taken to parse and evaluate it, and the value or message. A summary of the
+ * throughput and latencies goes to stderr.
+ *
+ * Usage: Batch [--threads=n] [--out=file] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--antlr] path...
+ * where a path is a program file, a directory whose .scm files are run in name order, or @file
+ * naming a file that lists paths one per line.
+ */
+public class Batch {
+    private static final String USAGE = "Usage: Batch [--threads=n] [--out=file] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--antlr] path...";
+
+    private final Reader reader;
+    private final Evaluator prelude;
+
+    public Batch(Reader reader, Evaluator prelude) {
+        this.reader = reader;
+        this.prelude = prelude;
+    }
+
+    /** The outcome of running one program. */
+    public record Result(Path file, boolean ok, long nanos, String output) {
+        @Override
+        public String toString() {
+            return file + " " + (ok ? "ok " : "error ") + nanos / 1000 + " " + output.replace('\n', ' ');
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String bad = Interpreter.badNumber(args);
+        if (bad != null) {
+            System.err.println(bad);
+            System.err.println(USAGE);
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path out = null;
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if (arg.startsWith("--out=")) out = Path.of(arg.substring("--out=".length()));
+            else if (!arg.startsWith("--")) files.addAll(files(arg));
+        }
+
+        try (Reader reader = new Reader(Interpreter.parser(args));
+             PrintStream results = out == null ? System.out : new PrintStream(Files.newOutputStream(out), false)) {
+            Evaluator prelude = new Evaluator(Interpreter.strategy(args), Interpreter.pool(args));
+            Interpreter.prelude(reader, prelude, new Printer() {
+                @Override public void print(Value v) {}
+                @Override public void print(Program p) {}
+            }, Interpreter.snapshotFile(args));
+
+            long start = System.nanoTime();
+            List<Result> all = new Batch(reader, prelude).run(files, threads, results);
+            System.err.println(summary(all, System.nanoTime() - start));
+        }
+    }
+
+    // the program files a path argument stands for
+    static List<Path> files(String arg) throws IOException {
+        if (arg.startsWith("@")) {
+            List<Path> files = new ArrayList<>();
+            for (String line : Files.readAllLines(Path.of(arg.substring(1)))) {
+                if (!line.isBlank()) files.addAll(files(line.strip()));
+            }
+            return files;
+        }
+        Path path = Path.of(arg);
+        if (!Files.isDirectory(path)) return List.of(path);
+        try (Stream<Path> list = Files.list(path)) {
+            return list.filter(p -> p.toString().endsWith(".scm") && Files.isRegularFile(p)).sorted().toList();
+        }
+    }
+
+    /**
+     * Runs files on the given number of threads, printing each result to out in the order of
+     * files as soon as it and those before it are done. At most a few programs per thread are
+     * read ahead of the first one not yet printed.
+     */
+    public List<Result> run(List<Path> files, int threads, PrintStream out) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Result> results = new ArrayList<>(files.size());
+            ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+            int next = 0;
+            while (next < files.size() || !pending.isEmpty()) {
+                while (next < files.size() && pending.size() < 4 * threads) {
+                    Path file = files.get(next++);
+                    pending.add(pool.submit(() -> run(file)));
+                }
+                Result r;
+                try {
+                    r = pending.remove().get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                out.println(r);
+                results.add(r);
+            }
+            out.flush();
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Evaluates one file in an environment of its own, a top-level form at a time as it is read,
+     * so a large file's definitions run while the rest of it is still being read. The value is
+     * that of the last form.
+     */
+    public Result run(Path file) {
+        long start = System.nanoTime();
+        try (FileChannel in = FileChannel.open(file)) {
+            Evaluator eval = prelude.fork();
+            String value = "";
+            for (Iterator<Program> programs = reader.programs(in); programs.hasNext(); ) {
+                Program p = programs.next();
+                if (p.e() != null) value = eval.valueOf(p).toString();
+            }
+            return new Result(file, true, System.nanoTime() - start, value);
+        } catch (IOException | UncheckedIOException e) {
+            return new Result(file, false, System.nanoTime() - start, "Cannot read " + (e instanceof UncheckedIOException u ? u.getCause() : e));
+        } catch (RuntimeException | StackOverflowError e) {
+            return new Result(file, false, System.nanoTime() - start, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    /** Returns the number of programs and errors, the throughput, and the p50 and p99 latency. */
+    static String summary(List<Result> results, long nanos) {
+        long[] latencies = results.stream().mapToLong(Result::nanos).sorted().toArray();
+        long errors = results.stream().filter(r -> !r.ok()).count();
+        return String.format("%d programs (%d errors) in %.3f s: %.1f programs/s, p50 %d us, p99 %d us",
+                results.size(), errors, nanos / 1e9, results.size() / (nanos / 1e9),
+                percentile(latencies, 50) / 1000, percentile(latencies, 99) / 1000);
+    }
+
+    // the nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.max(0, (int) Math.ceil(p / 100.0 * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,136 @@
+package arithlang;
+
+import java.util.*;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+import static arithlang.Env.*;
+
+/**
+ * Functions implemented in Java and defined in every global environment. Each one is a FuncVal
+ * whose body is a Builtin: an expression that evaluates itself from the arguments bound in its
+ * frame, so the backends call it like any other function.
+ *
+ * The list functions run as loops over the chunks of a ListVal. Those taking a function, such
+ * as map, call it through call with the visitor they were run by, so a function defined in the
+ * program runs on the same backend as the rest of it.
+ *
+ * The functions are defined in a table of their own, the parent of every global environment of
+ * a backend. A program may define a global of the same name as a built-in function, which
+ * shadows it, so programs written before it was built in still run.
+ */
+@SuppressWarnings("rawtypes")
+public final class Builtins {
+    private static final Map<String, FuncVal> functions = new LinkedHashMap<>();
+    private static final GlobalEnv globals = new GlobalEnv();
+
+    static {
+        define("length", (v, args) -> NumVal.valueOf(list(args, 0, "length").size()), "lst");
+        define("nth", (v, args) -> list(args, 0, "nth").get(index(args, 1, "nth")), "lst", "n");
+        define("sum", (v, args) -> NumVal.valueOf(list(args, 0, "sum").sum()), "lst");
+        define("reverse", (v, args) -> list(args, 0, "reverse").reverse(), "lst");
+        define("map", Builtins::map, "op", "lst");
+        define("filter", Builtins::filter, "pred", "lst");
+        define("fold", Builtins::fold, "op", "init", "lst");
+        functions.forEach(globals::extend);
+    }
+
+    private Builtins() {}
+
+    /**
+     * The implementation of a built-in function, given the visitor it is run by (the
+     * Compiler's Evaluator in compiled code) and the frame holding its arguments.
+     */
+    @FunctionalInterface
+    interface Impl {
+        Value apply(Visitor visitor, FrameEnv args);
+    }
+
+    /** The body of a built-in function. It passes the visitor it is given on to call. */
+    static final class Builtin extends Exp {
+        private final String name;
+        private final Impl impl;
+
+        Builtin(String name, Impl impl) {
+            this.name = name;
+            this.impl = impl;
+        }
+
+        public String name() { return name; }
+
+        @Override
+        public Object accept(Visitor visitor, Env env) {
+            return impl.apply(visitor, (FrameEnv) env);
+        }
+    }
+
+    private static void define(String name, Impl impl, String... params) {
+        functions.put(name, new FuncVal(new Builtin(name, impl), new ArrayList<>(List.of(params)), EmptyEnv.EMPTY));
+    }
+
+    /** The table of the built-in functions, for global environments to have as their parent. */
+    public static GlobalEnv globals() {
+        return globals;
+    }
+
+    /** Returns the built-in function of the given name, or null. */
+    public static FuncVal get(String name) {
+        return functions.get(name);
+    }
+
+    // (map op lst) is the list of op applied to each element of lst, in the same order
+    private static Value map(Visitor visitor, FrameEnv args) {
+        FuncVal op = function(args, 0, 1, "map");
+        ListVal lst = list(args, 1, "map");
+        AssignableValue[] items = new AssignableValue[lst.size()];
+        int i = 0;
+        for (AssignableValue item : lst) items[i++] = call(visitor, op, item);
+        return ListVal.of(items);
+    }
+
+    // (filter pred lst) is the list of the elements of lst for which pred is true
+    private static Value filter(Visitor visitor, FrameEnv args) {
+        FuncVal pred = function(args, 0, 1, "filter");
+        ListVal lst = list(args, 1, "filter");
+        AssignableValue[] items = new AssignableValue[lst.size()];
+        int n = 0;
+        for (AssignableValue item : lst) {
+            if (call(visitor, pred, item).toBool().v()) items[n++] = item;
+        }
+        return ListVal.of(n == items.length ? items : Arrays.copyOf(items, n));
+    }
+
+    // (fold op init lst) is (op (op init x1) x2) and so on for the elements x1, x2... of lst
+    private static Value fold(Visitor visitor, FrameEnv args) {
+        FuncVal op = function(args, 0, 2, "fold");
+        AssignableValue acc = args.get(0, 1);
+        for (AssignableValue item : list(args, 2, "fold")) acc = call(visitor, op, acc, item);
+        return acc;
+    }
+
+    /**
+     * Calls f with args from a built-in run by visitor. The body of f evaluates itself if it
+     * was compiled or is a built-in, and is evaluated by visitor otherwise.
+     */
+    static AssignableValue call(Visitor visitor, FuncVal f, Value... args) {
+        Parallel.poll();
+        Object o = f.body().accept(visitor, new FrameEnv(f.env(), f.names(), args));
+        if (!(o instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + o);
+        return val;
+    }
+
+    static FuncVal function(FrameEnv args, int index, int arity, String function) {
+        if (!(args.get(0, index) instanceof FuncVal f) || f.params().size() != arity) throw new InterpreterException(function + " expects a function of " + arity + " argument" + (arity == 1 ? "" : "s") + " as argument " + (index + 1));
+        return f;
+    }
+
+    static ListVal list(FrameEnv args, int index, String function) {
+        if (!(args.get(0, index) instanceof ListVal l)) throw new InterpreterException(function + " expects a list as argument " + (index + 1));
+        return l;
+    }
+
+    static int index(FrameEnv args, int index, String function) {
+        if (!(args.get(0, index) instanceof NumVal n) || n.v() != (int) n.v()) throw new InterpreterException(function + " expects an integer as argument " + (index + 1));
+        return (int) n.v();
+    }
+}
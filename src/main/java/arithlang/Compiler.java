@@ -0,0 +1,743 @@
+package arithlang;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+import static arithlang.Env.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * A backend that compiles each Program into a JVM class instead of walking its AST.
+ *
+ * Every expression that is run on its own -- the main expression, each definition, each lambda
+ * body and each call argument -- becomes a "unit": one method of a hidden class generated for
+ * the program. Arithmetic is done on unboxed doubles, comparisons and conditions on JVM
+ * booleans, and the remaining nodes call the small static helpers in Support.
+ *
+ * Compiled code shares the Env and Value classes of the Evaluator: variables are read by the
+ * addresses computed by the Resolver, functions are FuncVals whose body is a Unit or a Builtin,
+ * and call by need arguments are PromiseVals. Calls in tail position return a TailCall that is run by the
+ * caller's loop, so tail recursion uses constant Java stack as it does in the Evaluator.
+ *
+ * Compiled code also calls functions made by the Evaluator or restored from a Snapshot, whose
+ * body is an AST. Their bodies are evaluated by an Evaluator sharing this backend's globals,
+ * which is also the visitor built-in functions get to call them with.
+ *
+ * Arguments are passed by value, name or need as in the Evaluator, and calls are counted by
+ * Metrics. The FUTURE strategy, parallel evaluation and the Profiler work on the Evaluator's
+ * AST and are not supported; the Interpreter rejects --compile together with their options.
+ */
+@SuppressWarnings("rawtypes")
+public class Compiler implements Backend {
+    private final Evaluator.Strategy strategy;
+    private final GlobalEnv initialEnv = new GlobalEnv(Builtins.globals());
+    private final Evaluator evaluator;
+    // programs that are run again reuse their generated class; compiled outside its lock, so
+    // compiling one program does not hold up the others, and the first class put wins
+    private final Map<Program, List<Unit>> compiled = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public Compiler() {
+        this(Evaluator.Strategy.NEED);
+    }
+
+    /** A compiler passing arguments by strategy, which can be VALUE, NAME or NEED. */
+    public Compiler(Evaluator.Strategy strategy) {
+        if (Objects.requireNonNull(strategy, "Strategy cannot be Null") == Evaluator.Strategy.FUTURE) {
+            throw new IllegalArgumentException("The Compiler does not support the FUTURE strategy");
+        }
+        this.strategy = strategy;
+        this.evaluator = new Evaluator(strategy, initialEnv);
+    }
+
+    @Override
+    public Value valueOf(Program p) {
+        List<Unit> units = compiled.get(p);
+        if (units == null) {
+            List<Unit> generated = compile(p);
+            units = compiled.putIfAbsent(p, generated);
+            if (units == null) units = generated;
+        }
+        Unit main = units.get(0);
+
+        for (int i = 0; i < p.defs().size(); i++) {
+            DefDecl d = p.defs().get(i);
+            Value v = run(units.get(i + 1), initialEnv);
+            if (!(v instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + new Printer.Formatter().visit(d, initialEnv));
+            initialEnv.extend(d.name(), val);
+        }
+        return run(main, initialEnv);
+    }
+
+    // returns the unit of the main expression followed by the units of the definitions
+    private List<Unit> compile(Program p) {
+        p = Resolver.resolve(Optimizer.optimize(p));
+        Gen gen = new Gen(strategy);
+        List<Unit> units = new ArrayList<>();
+        units.add(gen.unit(p.e(), true));
+        for (DefDecl d : p.defs()) units.add(gen.unit(d.exp(), true));
+        gen.load(initialEnv, evaluator);
+        return units;
+    }
+
+    static Value run(Unit unit, Env env) {
+        return run(unit, env, null);
+    }
+
+    // Runs unit and then the tail calls it returns, as the Evaluator's trampoline does. The first
+    // call, which is call when unit is the body of a called function, and the tail calls after
+    // it are counted by Metrics.called.
+    static Value run(Unit unit, Env env, CallExp call) {
+        Metrics.CallEvent event = call == null ? null : Metrics.beginCall();
+        int tails = 0;
+        try {
+            Object r = unit.code.run(unit.index, env);
+            while (r instanceof TailCall t) {
+                if (call == null) {
+                    call = t.site;
+                    event = Metrics.beginCall();
+                } else {
+                    tails++;
+                }
+                env = t.env;
+                r = t.unit.code.run(t.unit.index, env);
+            }
+            return (Value) r;
+        } finally {
+            if (call != null) Metrics.called(event, tails, env, call);
+        }
+    }
+
+    /** The base class of generated code; run dispatches to the method of the given unit. */
+    abstract static class Code {
+        Object[] consts;
+        GlobalEnv globals;
+        // evaluates the functions that were not compiled
+        Visitor visitor;
+
+        abstract Object run(int unit, Env env);
+    }
+
+    /** A compiled expression. It evaluates itself and ignores the visitor it is given. */
+    static final class Unit extends Exp {
+        private final Exp source;
+        private final int index;
+        private Code code;
+
+        Unit(Exp source, int index) {
+            this.source = source;
+            this.index = index;
+        }
+
+        public Exp source() { return source; }
+
+        @Override
+        public Object accept(Visitor visitor, Env env) {
+            return run(this, env);
+        }
+    }
+
+    static final class TailCall {
+        private final Unit unit;
+        private final Env env;
+        private final CallExp site;
+
+        TailCall(Unit unit, Env env, CallExp site) {
+            this.unit = unit;
+            this.env = env;
+            this.site = site;
+        }
+    }
+
+    /** Helpers called from generated code. Their checks and messages follow the Evaluator. */
+    static final class Support {
+        private static final Printer.Formatter formatter = new Printer.Formatter();
+
+        private Support() {}
+
+        static String format(Exp e) {
+            return (String) e.accept(formatter, null);
+        }
+
+        static double num(Object o, Exp site) {
+            if (!(o instanceof NumVal val)) throw new InterpreterException("Expression does not evaluate to numerical value " + format(site));
+            return val.v();
+        }
+
+        static NumVal box(double d) {
+            return NumVal.valueOf(d);
+        }
+
+        static BoolVal bool(boolean b) {
+            return b ? BoolVal.TrueVal : BoolVal.FalseVal;
+        }
+
+        static AssignableValue assignable(Object o, Exp site) {
+            if (!(o instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to Assignable value " + format(site));
+            return val;
+        }
+
+        static boolean truthy(Object o, Exp site) {
+            return assignable(o, site).toBool().v();
+        }
+
+        static boolean test(Object o, IfExp site) {
+            if (!(o instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to an assignable value " + format(site));
+            return val.toBool().v();
+        }
+
+        static boolean eq(AssignableValue l, AssignableValue r) {
+            return l.eq(r).v();
+        }
+
+        // NaN differences compare as true, as in Node.GenericCompare
+        static boolean gt(AssignableValue l, AssignableValue r) {
+            return !(l.comp(r) <= 0);
+        }
+
+        static boolean lt(AssignableValue l, AssignableValue r) {
+            return !(l.comp(r) >= 0);
+        }
+
+        static FrameEnv frame(Env env, LetExp e) {
+            return new FrameEnv(env, e.names(), new Value[e.names().length]);
+        }
+
+        static void bind(FrameEnv frame, int index, Object o) {
+            frame.set(index, (AssignableValue) o);
+        }
+
+        static FuncVal callee(Object o, CallExp site) {
+            if (!(o instanceof FuncVal func)) throw new InterpreterException("Operator not a function in call " + format(site));
+            if (func.params().size() != site.args().size()) throw new InterpreterException("Argument mismatch in call " + format(site));
+            return func;
+        }
+
+        // the body of a function that was not compiled is evaluated by visitor
+        static Value call(FuncVal f, Value[] args, Visitor visitor, CallExp site) {
+            FrameEnv frame = new FrameEnv(f.env(), f.names(), args);
+            if (f.body() instanceof Unit u) return run(u, frame, site);
+            return (Value) f.body().accept(visitor, frame);
+        }
+
+        // built-in and evaluated functions are run right away; the Evaluator runs the tail calls
+        // of an evaluated function in its own loop, so only calls between the backends grow the stack
+        static Object tail(FuncVal f, Value[] args, Visitor visitor, CallExp site) {
+            FrameEnv frame = new FrameEnv(f.env(), f.names(), args);
+            if (f.body() instanceof Unit u) return new TailCall(u, frame, site);
+            return f.body().accept(visitor, frame);
+        }
+
+        static Value promise(Unit thunk, Env env) {
+            return new PromiseVal(thunk, env);
+        }
+
+        static Value byName(Unit thunk, Env env) {
+            return new PromiseVal(thunk, env, false);
+        }
+
+        static AssignableValue byValue(Object o, CallExp site) {
+            if (!(o instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + format(site));
+            return val;
+        }
+
+        // a global that had no slot when its code was generated
+        static AssignableValue lookup(GlobalEnv globals, VarExp v) {
+            int slot = v.slot();
+            return slot >= 0 ? globals.get(slot) : globals.get(v.name());
+        }
+
+        static Value global(GlobalEnv globals, VarExp v, Unit thunk, Env env) {
+            Value val = globals.peek(v.slot());
+            return val != null ? val : promise(thunk, env);
+        }
+
+        // see Evaluator.needArg: evaluate right away when all the variables used are known
+        static Value needArg(Unit thunk, Env env, GlobalEnv globals, VarExp[] vars) {
+            for (VarExp v : vars) {
+                Value val = v.depth() >= 0 ? ((FrameEnv) env).peek(v.depth(), v.index()) : globals.peek(v.slot());
+                if (!(val instanceof AssignableValue || val instanceof PromiseVal p && p.isForced())) return promise(thunk, env);
+            }
+            try {
+                if (run(thunk, env) instanceof AssignableValue val) return val;
+            } catch (InterpreterException ex) {
+                // fall back to a promise and let the callee decide
+            }
+            return promise(thunk, env);
+        }
+
+        static PairVal pair(Object a, Object b) {
+            if(!(a instanceof AssignableValue i)) throw new InterpreterException("Exps in a pair must evaluate to an assignable value");
+            if(!(b instanceof AssignableValue j)) throw new InterpreterException("Exps in a pair must evaluate to an assignable value");
+            return new PairVal(i, j);
+        }
+
+        static AssignableValue first(Object a) {
+            if(!(a instanceof Pairable i)) throw new InterpreterException("Exps in a first must evaluate to a Pair value");
+            return i.first();
+        }
+
+        static AssignableValue second(Object a) {
+            if(!(a instanceof Pairable i)) throw new InterpreterException("Exps in a first must evaluate to a Pair value");
+            return i.second();
+        }
+
+        static ListVal cons(ListVal list, Object o) {
+            if(!(o instanceof AssignableValue a)) throw new InterpreterException("Exps in a List must evaluate to an assignable value");
+            return new ListVal(a, list);
+        }
+
+        static AssignableValue item(Object o) {
+            if(!(o instanceof AssignableValue a)) throw new InterpreterException("Exps in a List must evaluate to an assignable value");
+            return a;
+        }
+
+        static ListVal listOf(AssignableValue[] items) {
+            return ListVal.of(items);
+        }
+
+        static ListVal list(Object o) {
+            if(!(o instanceof ListVal old)) throw new InterpreterException("l exp must evaluate to a list");
+            return old;
+        }
+    }
+
+    private static final String CODE = Type.getInternalName(Code.class);
+    private static final String SUPPORT = Type.getInternalName(Support.class);
+    private static final String ENV = Type.getInternalName(Env.class);
+    private static final String FRAME = Type.getInternalName(FrameEnv.class);
+    private static final String GLOBAL = Type.getInternalName(GlobalEnv.class);
+    private static final String VALUE = Type.getInternalName(Value.class);
+    private static final String FUNC = Type.getInternalName(FuncVal.class);
+    private static final String LIST = Type.getInternalName(ListVal.class);
+    private static final String VISITOR = Type.getInternalName(Visitor.class);
+    private static final String UNIT = "(L" + ENV + ";)Ljava/lang/Object;";
+
+    /** Generates the class of one program, one method per unit. */
+    private static final class Gen {
+        private final String name = "arithlang/CompiledProgram";
+        private final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String a, String b) {
+                try {
+                    return super.getCommonSuperClass(a, b);
+                } catch (RuntimeException | LinkageError e) {
+                    return "java/lang/Object";
+                }
+            }
+        };
+        private final List<Object> consts = new ArrayList<>();
+        private final List<Unit> units = new ArrayList<>();
+        private final ArrayDeque<Unit> pending = new ArrayDeque<>();
+        private final Map<Unit, Boolean> tails = new HashMap<>();
+        private final Evaluator.Strategy strategy;
+
+        // state of the method being generated
+        private MethodVisitor mv;
+        private int nextLocal;
+
+        Gen(Evaluator.Strategy strategy) {
+            this.strategy = strategy;
+            cw.visit(V17, ACC_FINAL | ACC_SUPER, name, null, CODE, null);
+        }
+
+        Unit unit(Exp e, boolean tail) {
+            Unit u = new Unit(e, units.size());
+            units.add(u);
+            tails.put(u, tail);
+            pending.add(u);
+            return u;
+        }
+
+        void load(GlobalEnv globals, Visitor visitor) {
+            while (!pending.isEmpty()) method(pending.poll());
+
+            MethodVisitor init = cw.visitMethod(0, "<init>", "()V", null, null);
+            init.visitCode();
+            init.visitVarInsn(ALOAD, 0);
+            init.visitMethodInsn(INVOKESPECIAL, CODE, "<init>", "()V", false);
+            init.visitInsn(RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+
+            MethodVisitor run = cw.visitMethod(0, "run", "(IL" + ENV + ";)Ljava/lang/Object;", null, null);
+            run.visitCode();
+            Label fail = new Label();
+            Label[] cases = new Label[units.size()];
+            for (int i = 0; i < cases.length; i++) cases[i] = new Label();
+            run.visitVarInsn(ILOAD, 1);
+            run.visitTableSwitchInsn(0, cases.length - 1, fail, cases);
+            for (int i = 0; i < cases.length; i++) {
+                run.visitLabel(cases[i]);
+                run.visitVarInsn(ALOAD, 0);
+                run.visitVarInsn(ALOAD, 2);
+                run.visitMethodInsn(INVOKEVIRTUAL, name, "u" + i, UNIT, false);
+                run.visitInsn(ARETURN);
+            }
+            run.visitLabel(fail);
+            run.visitInsn(ACONST_NULL);
+            run.visitInsn(ARETURN);
+            run.visitMaxs(0, 0);
+            run.visitEnd();
+            cw.visitEnd();
+
+            Code code;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+                code = (Code) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            } catch (Throwable t) {
+                throw new InterpreterException("Could not load compiled program: " + t);
+            }
+            code.consts = consts.toArray();
+            code.globals = globals;
+            code.visitor = visitor;
+            for (Unit u : units) u.code = code;
+        }
+
+        private void method(Unit u) {
+            mv = cw.visitMethod(ACC_FINAL, "u" + u.index, UNIT, null, null);
+            nextLocal = 2;
+            mv.visitCode();
+            value(u.source, 1, tails.get(u));
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void constant(Object o, Class<?> type) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, CODE, "consts", "[Ljava/lang/Object;");
+            push(consts.size());
+            consts.add(o);
+            mv.visitInsn(AALOAD);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+        }
+
+        private void push(int i) {
+            if (i >= -1 && i <= 5) mv.visitInsn(ICONST_0 + i);
+            else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) mv.visitIntInsn(SIPUSH, i);
+            else mv.visitLdcInsn(i);
+        }
+
+        private void support(String method, String desc) {
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, method, desc, false);
+        }
+
+        // Leaves the Value of e on the stack, or a TailCall when tail is set.
+        private void value(Exp e, int env, boolean tail) {
+            if (e instanceof NumExp n) {
+                constant(n.v(), NumVal.class);
+            } else if (e instanceof BoolExp b) {
+                mv.visitFieldInsn(GETSTATIC, Type.getInternalName(BoolVal.class), b.v().v() ? "TrueVal" : "FalseVal", "L" + Type.getInternalName(BoolVal.class) + ";");
+            } else if (e instanceof UnitExp) {
+                mv.visitFieldInsn(GETSTATIC, Type.getInternalName(UnitVal.class), "UNIT_VAL", "L" + Type.getInternalName(UnitVal.class) + ";");
+            } else if (e instanceof CompoundArithExp) {
+                number(e, env);
+                support("box", "(D)L" + Type.getInternalName(NumVal.class) + ";");
+            } else if (e instanceof CompoundBoolExp) {
+                bool(e, env);
+                support("bool", "(Z)L" + Type.getInternalName(BoolVal.class) + ";");
+            } else if (e instanceof VarExp v) {
+                var(v, env);
+            } else if (e instanceof LetExp l) {
+                let(l, env, tail);
+            } else if (e instanceof LambdaExp l) {
+                LambdaExp compiled = new LambdaExp(l.params(), unit(l.body(), true));
+                if (l.captured() != null) compiled.setCaptures(l.captured(), l.captureDepths(), l.captureIndexes());
+                constant(compiled, LambdaExp.class);
+                mv.visitVarInsn(ALOAD, env);
+                mv.visitMethodInsn(INVOKESTATIC, FUNC, "of", "(L" + Type.getInternalName(LambdaExp.class) + ";L" + ENV + ";)L" + FUNC + ";", false);
+            } else if (e instanceof CallExp c) {
+                call(c, env, tail);
+            } else if (e instanceof IfExp i) {
+                Label otherwise = new Label(), end = new Label();
+                condition(i, env);
+                mv.visitJumpInsn(IFEQ, otherwise);
+                value(i.t_exp(), env, tail);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(otherwise);
+                value(i.f_exp(), env, tail);
+                mv.visitLabel(end);
+            } else if (e instanceof PairExp p) {
+                value(p.first(), env, false);
+                value(p.second(), env, false);
+                support("pair", "(Ljava/lang/Object;Ljava/lang/Object;)L" + Type.getInternalName(PairVal.class) + ";");
+            } else if (e instanceof FirstExp f) {
+                value(f.exp(), env, false);
+                support("first", "(Ljava/lang/Object;)L" + Type.getInternalName(AssignableValue.class) + ";");
+            } else if (e instanceof SecondExp s) {
+                value(s.exp(), env, false);
+                support("second", "(Ljava/lang/Object;)L" + Type.getInternalName(AssignableValue.class) + ";");
+            } else if (e instanceof ListExp l) {
+                // see Evaluator.visit(ListExp): the last element comes first
+                List<Exp> items = l.all();
+                push(items.size());
+                mv.visitTypeInsn(ANEWARRAY, Type.getInternalName(AssignableValue.class));
+                for (int i = 0; i < items.size(); i++) {
+                    mv.visitInsn(DUP);
+                    push(items.size() - 1 - i);
+                    value(items.get(i), env, false);
+                    support("item", "(Ljava/lang/Object;)L" + Type.getInternalName(AssignableValue.class) + ";");
+                    mv.visitInsn(AASTORE);
+                }
+                support("listOf", "([L" + Type.getInternalName(AssignableValue.class) + ";)L" + LIST + ";");
+            } else if (e instanceof AppendExp a) {
+                value(a.list(), env, false);
+                support("list", "(Ljava/lang/Object;)L" + LIST + ";");
+                value(a.e(), env, false);
+                support("cons", "(L" + LIST + ";Ljava/lang/Object;)L" + LIST + ";");
+            } else {
+                throw new InterpreterException("Cannot compile " + e.getClass());
+            }
+        }
+
+        private void var(VarExp v, int env) {
+            if (v.depth() >= 0) {
+                mv.visitVarInsn(ALOAD, env);
+                mv.visitTypeInsn(CHECKCAST, FRAME);
+                push(v.depth());
+                push(v.index());
+                mv.visitMethodInsn(INVOKEVIRTUAL, FRAME, "get", "(II)L" + Type.getInternalName(AssignableValue.class) + ";", false);
+            } else if (v.depth() == VarExp.GLOBAL && v.slot() >= 0) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, CODE, "globals", "L" + GLOBAL + ";");
+                push(v.slot());
+                mv.visitMethodInsn(INVOKEVIRTUAL, GLOBAL, "get", "(I)L" + Type.getInternalName(AssignableValue.class) + ";", false);
+            } else if (v.depth() == VarExp.GLOBAL) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, CODE, "globals", "L" + GLOBAL + ";");
+                constant(v, VarExp.class);
+                support("lookup", "(L" + GLOBAL + ";L" + Type.getInternalName(VarExp.class) + ";)L" + Type.getInternalName(AssignableValue.class) + ";");
+            } else {
+                mv.visitVarInsn(ALOAD, env);
+                mv.visitLdcInsn(v.name());
+                mv.visitMethodInsn(INVOKEINTERFACE, ENV, "get", "(Ljava/lang/String;)L" + Type.getInternalName(AssignableValue.class) + ";", true);
+            }
+        }
+
+        private void let(LetExp l, int env, boolean tail) {
+            int frame = nextLocal++;
+            mv.visitVarInsn(ALOAD, env);
+            constant(l, LetExp.class);
+            support("frame", "(L" + ENV + ";L" + Type.getInternalName(LetExp.class) + ";)L" + FRAME + ";");
+            mv.visitVarInsn(ASTORE, frame);
+            Exp[] exps = l.exps();
+            for (int i = 0; i < exps.length; i++) {
+                mv.visitVarInsn(ALOAD, frame);
+                push(i);
+                value(exps[i], frame, false);
+                support("bind", "(L" + FRAME + ";ILjava/lang/Object;)V");
+            }
+            value(l.getBody(), frame, tail);
+        }
+
+        private void call(CallExp c, int env, boolean tail) {
+            value(c.e(), env, false);
+            constant(c, CallExp.class);
+            support("callee", "(Ljava/lang/Object;L" + Type.getInternalName(CallExp.class) + ";)L" + FUNC + ";");
+            push(c.args().size());
+            mv.visitTypeInsn(ANEWARRAY, VALUE);
+            for (int i = 0; i < c.args().size(); i++) {
+                mv.visitInsn(DUP);
+                push(i);
+                argument(c.args().get(i), c, env);
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, CODE, "visitor", "L" + VISITOR + ";");
+            constant(c, CallExp.class);
+            String site = "L" + Type.getInternalName(CallExp.class) + ";";
+            if (tail) support("tail", "(L" + FUNC + ";[L" + VALUE + ";L" + VISITOR + ";" + site + ")Ljava/lang/Object;");
+            else support("call", "(L" + FUNC + ";[L" + VALUE + ";L" + VISITOR + ";" + site + ")L" + VALUE + ";");
+        }
+
+        // Leaves the binding of an argument of call: by value its value, by name a promise, and
+        // by need a value when it is already known, otherwise a promise.
+        private void argument(Exp a, CallExp call, int env) {
+            if (strategy == Evaluator.Strategy.VALUE) {
+                value(a, env, false);
+                constant(call, CallExp.class);
+                support("byValue", "(Ljava/lang/Object;L" + Type.getInternalName(CallExp.class) + ";)L" + Type.getInternalName(AssignableValue.class) + ";");
+            } else if (strategy == Evaluator.Strategy.NAME) {
+                constant(unit(a, false), Unit.class);
+                mv.visitVarInsn(ALOAD, env);
+                support("byName", "(L" + Type.getInternalName(Unit.class) + ";L" + ENV + ";)L" + VALUE + ";");
+            } else if (a instanceof NumExp || a instanceof BoolExp) {
+                value(a, env, false);
+            } else if (a instanceof VarExp v && v.depth() >= 0) {
+                mv.visitVarInsn(ALOAD, env);
+                mv.visitTypeInsn(CHECKCAST, FRAME);
+                push(v.depth());
+                push(v.index());
+                mv.visitMethodInsn(INVOKEVIRTUAL, FRAME, "peek", "(II)L" + VALUE + ";", false);
+            } else if (a instanceof VarExp v && v.depth() == VarExp.GLOBAL) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, CODE, "globals", "L" + GLOBAL + ";");
+                constant(v, VarExp.class);
+                constant(unit(a, false), Unit.class);
+                mv.visitVarInsn(ALOAD, env);
+                support("global", "(L" + GLOBAL + ";L" + Type.getInternalName(VarExp.class) + ";L" + Type.getInternalName(Unit.class) + ";L" + ENV + ";)L" + VALUE + ";");
+            } else {
+                List<VarExp> vars = new ArrayList<>();
+                constant(unit(a, false), Unit.class);
+                mv.visitVarInsn(ALOAD, env);
+                if (cheap(a, vars) > 0) {
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, CODE, "globals", "L" + GLOBAL + ";");
+                    constant(vars.toArray(new VarExp[0]), VarExp[].class);
+                    support("needArg", "(L" + Type.getInternalName(Unit.class) + ";L" + ENV + ";L" + GLOBAL + ";[L" + Type.getInternalName(VarExp.class) + ";)L" + VALUE + ";");
+                } else {
+                    support("promise", "(L" + Type.getInternalName(Unit.class) + ";L" + ENV + ";)L" + VALUE + ";");
+                }
+            }
+        }
+
+        // see Evaluator.cheap; the values of the resolved variables it collects into vars are
+        // checked by Support.needArg when the call runs, and compiled arithmetic checks that its
+        // operands are numbers, so they need not be known to be
+        private int cheap(Exp a, List<VarExp> vars) {
+            return Evaluator.cheap(a, null, (v, env, number) -> {
+                if (v.depth() == VarExp.UNRESOLVED) return false;
+                vars.add(v);
+                return true;
+            }, Evaluator.CHEAP_BUDGET);
+        }
+
+        // Leaves the double value of an arithmetic expression.
+        private void number(Exp e, int env) {
+            if (e instanceof NumExp n) {
+                mv.visitLdcInsn(n.v().v());
+                return;
+            }
+            List<Exp> operands = ((CompoundArithExp) e).all();
+            if (e instanceof AddExp || e instanceof MultExp) {
+                boolean add = e instanceof AddExp;
+                mv.visitInsn(add ? DCONST_0 : DCONST_1);
+                for (Exp operand : operands) {
+                    operand(operand, e, env);
+                    mv.visitInsn(add ? DADD : DMUL);
+                }
+            } else if (e instanceof PowExp) {
+                // folds from the right: (^ a b c) is a^(b^c)
+                int result = nextLocal;
+                nextLocal += 2;
+                mv.visitInsn(DCONST_1);
+                for (int i = operands.size() - 1; i >= 0; i--) {
+                    mv.visitVarInsn(DSTORE, result);
+                    operand(operands.get(i), e, env);
+                    mv.visitVarInsn(DLOAD, result);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", false);
+                }
+            } else {
+                operand(operands.get(0), e, env);
+                for (int i = 1; i < operands.size(); i++) {
+                    operand(operands.get(i), e, env);
+                    if (e instanceof SubExp) mv.visitInsn(DSUB);
+                    else mv.visitInsn(DDIV);
+                    if (e instanceof IntDivExp) {
+                        mv.visitInsn(D2I);
+                        mv.visitInsn(I2D);
+                    }
+                }
+            }
+        }
+
+        private void operand(Exp operand, Exp site, int env) {
+            if (operand instanceof NumExp || operand instanceof CompoundArithExp) {
+                number(operand, env);
+            } else {
+                value(operand, env, false);
+                constant(site, Exp.class);
+                support("num", "(Ljava/lang/Object;L" + Type.getInternalName(Exp.class) + ";)D");
+            }
+        }
+
+        private static boolean numeric(Exp e) {
+            return e instanceof NumExp || e instanceof CompoundArithExp;
+        }
+
+        private void condition(IfExp i, int env) {
+            if (i.cond() instanceof CompoundBoolExp) {
+                bool(i.cond(), env);
+            } else {
+                value(i.cond(), env, false);
+                constant(i, IfExp.class);
+                support("test", "(Ljava/lang/Object;L" + Type.getInternalName(IfExp.class) + ";)Z");
+            }
+        }
+
+        // Leaves the JVM boolean result of a comparison, and or or.
+        private void bool(Exp e, int env) {
+            List<Exp> operands = ((CompoundBoolExp) e).all();
+            Label no = new Label(), yes = new Label(), end = new Label();
+            if (e instanceof AndExp || e instanceof OrExp) {
+                boolean and = e instanceof AndExp;
+                for (Exp operand : operands) {
+                    value(operand, env, false);
+                    constant(e, Exp.class);
+                    support("truthy", "(Ljava/lang/Object;L" + Type.getInternalName(Exp.class) + ";)Z");
+                    mv.visitJumpInsn(and ? IFEQ : IFNE, and ? no : yes);
+                }
+                mv.visitJumpInsn(GOTO, and ? yes : no);
+            } else if (operands.stream().allMatch(Gen::numeric)) {
+                // both sides of every comparison are numbers, compare them unboxed
+                int l = nextLocal;
+                nextLocal += 2;
+                number(operands.get(0), env);
+                mv.visitVarInsn(DSTORE, l);
+                for (int i = 1; i < operands.size(); i++) {
+                    mv.visitVarInsn(DLOAD, l);
+                    number(operands.get(i), env);
+                    mv.visitInsn(DUP2);
+                    mv.visitVarInsn(DSTORE, l);
+                    mv.visitInsn(DSUB);
+                    if (e instanceof EqualExp) {
+                        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(D)D", false);
+                        mv.visitLdcInsn(1e-9);
+                        mv.visitInsn(DCMPG);
+                        mv.visitJumpInsn(IFGE, no);
+                    } else {
+                        // NaN differences compare as true, as they do in NumVal.comp
+                        mv.visitInsn(DCONST_0);
+                        mv.visitInsn(e instanceof GtExp ? DCMPG : DCMPL);
+                        mv.visitJumpInsn(e instanceof GtExp ? IFLE : IFGE, no);
+                    }
+                }
+                mv.visitJumpInsn(GOTO, yes);
+            } else {
+                String assignable = "(Ljava/lang/Object;L" + Type.getInternalName(Exp.class) + ";)L" + Type.getInternalName(AssignableValue.class) + ";";
+                String test = e instanceof EqualExp ? "eq" : e instanceof GtExp ? "gt" : "lt";
+                int l = nextLocal++;
+                value(operands.get(0), env, false);
+                constant(e, Exp.class);
+                support("assignable", assignable);
+                mv.visitVarInsn(ASTORE, l);
+                for (int i = 1; i < operands.size(); i++) {
+                    mv.visitVarInsn(ALOAD, l);
+                    value(operands.get(i), env, false);
+                    constant(e, Exp.class);
+                    support("assignable", assignable);
+                    mv.visitInsn(DUP);
+                    mv.visitVarInsn(ASTORE, l);
+                    String a = "L" + Type.getInternalName(AssignableValue.class) + ";";
+                    support(test, "(" + a + a + ")Z");
+                    mv.visitJumpInsn(IFEQ, no);
+                }
+                mv.visitJumpInsn(GOTO, yes);
+            }
+            mv.visitLabel(no);
+            mv.visitInsn(ICONST_0);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(yes);
+            mv.visitInsn(ICONST_1);
+            mv.visitLabel(end);
+        }
+    }
+}
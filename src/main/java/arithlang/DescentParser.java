@@ -0,0 +1,370 @@
+package arithlang;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static arithlang.AST.*;
+
+/**
+ * A hand-written lexer and recursive descent parser for the grammar in ArithLang.g4, building
+ * the same AST as the ANTLR parser. It reads the text once, a token at a time, and decides each
+ * form by its first token or two instead of by adaptive prediction.
+ *
+ * Where the grammar is ambiguous ANTLR takes the first alternative of exp, and so does this:
+ *   - (5), (- 5), (5.5) and (- 5.5) are numbers and (x) is a variable, not calls;
+ *   - (- 5 3) subtracts, rather than calling -5 with 3.
+ *
+ * Only programs that parse cleanly and to the end of the text are accepted: parse returns null
+ * for anything else, including text after the program, which ANTLR ignores, and the caller
+ * parses it again with ANTLR to get the same errors and recovery as before.
+ */
+final class DescentParser {
+    // token kinds, single characters stand for themselves
+    private static final int EOF = -1, NUMBER = -2, IDENTIFIER = -3, TRUE = -4, FALSE = -5, INTDIV = -6,
+            LET = -7, DEFINE = -8, LAMBDA = -9, AND = -10, OR = -11, PAIR = -12, FIRST = -13, SECOND = -14,
+            LIST = -15, APPEND = -16;
+
+    private final CharSequence text;
+    private final int length;
+    private int pos;
+    // the current token
+    private int kind, start, end;
+    // the digits of the last number read, before and after its dot if it has one
+    private int intStart, intEnd, fracStart, fracEnd;
+
+    private DescentParser(CharSequence text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    /** Returns the program text holds, or null if it does not hold exactly one valid program. */
+    static Program parse(CharSequence text) {
+        DescentParser p = new DescentParser(text);
+        try {
+            p.next();
+            Program program = p.program();
+            return p.kind == EOF ? program : null;
+        } catch (Unparsable e) {
+            return null;
+        }
+    }
+
+    private static final class Unparsable extends RuntimeException {
+        Unparsable() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unparsable UNPARSABLE = new Unparsable();
+
+    private Program program() {
+        ArrayList<DefDecl> defs = new ArrayList<>();
+        while (kind == '(' && peekKeyword() == DEFINE) {
+            next();
+            next();
+            String name = identifier();
+            Exp e = exp();
+            expect(')');
+            defs.add(new DefDecl(name, e));
+        }
+        return new Program(defs, kind == EOF ? new UnitExp() : exp());
+    }
+
+    private Exp exp() {
+        switch (kind) {
+            case NUMBER:
+                return new NumExp(number(false));
+            case '-':
+                next();
+                if (kind != NUMBER) throw UNPARSABLE;
+                return new NumExp(number(true));
+            case IDENTIFIER:
+                return new VarExp(identifier());
+            case TRUE:
+            case FALSE: {
+                BoolExp e = new BoolExp(kind == TRUE ? "#t" : "#f");
+                next();
+                return e;
+            }
+            case '(':
+                next();
+                return form();
+            default:
+                throw UNPARSABLE;
+        }
+    }
+
+    // the rest of a form after its opening parenthesis
+    private Exp form() {
+        switch (kind) {
+            case '+': next(); return new AddExp(operands(2));
+            case '*': next(); return new MultExp(operands(2));
+            case '/': next(); return new DivExp(operands(2));
+            case INTDIV: next(); return new IntDivExp(operands(2));
+            case '^': next(); return new PowExp(operands(2));
+            case '=': next(); return new EqualExp(operands(2));
+            case '>': next(); return new GtExp(operands(2));
+            case '<': next(); return new LtExp(operands(2));
+            case AND: next(); return new AndExp(operands(2));
+            case OR: next(); return new OrExp(operands(2));
+            case LIST: next(); return new ListExp(operands(0));
+            case FIRST: {
+                next();
+                Exp e = exp();
+                expect(')');
+                return new FirstExp(e);
+            }
+            case SECOND: {
+                next();
+                Exp e = exp();
+                expect(')');
+                return new SecondExp(e);
+            }
+            case PAIR: {
+                next();
+                Exp f = exp();
+                Exp s = exp();
+                expect(')');
+                return new PairExp(f, s);
+            }
+            case APPEND: {
+                next();
+                Exp e = exp();
+                Exp l = exp();
+                expect(')');
+                return new AppendExp(e, l);
+            }
+            case LET:
+                return let();
+            case LAMBDA:
+                return lambda();
+            case '-':
+                return minus();
+        }
+
+        // a parenthesized number or variable, a branch or a call
+        boolean atom = kind == NUMBER || kind == IDENTIFIER;
+        Exp head = exp();
+        if (kind == ')' && atom) {
+            next();
+            return head;
+        }
+        return kind == '?' ? branch(head) : new CallExp(head, operands(0));
+    }
+
+    // (- e e ...), or (- n), or a branch whose condition is a negative number
+    private Exp minus() {
+        next();
+        boolean number = kind == NUMBER;
+        ArrayList<Exp> operands = new ArrayList<>();
+        while (kind != ')') {
+            // the last number read is still the first operand
+            if (kind == '?' && number && operands.size() == 1) return branch(new NumExp(value(true)));
+            operands.add(exp());
+        }
+        next();
+        if (operands.size() >= 2) return new SubExp(operands);
+        if (operands.size() == 1 && number) return new NumExp(value(true));
+        throw UNPARSABLE;
+    }
+
+    private IfExp branch(Exp cond) {
+        expect('?');
+        Exp t = exp();
+        expect(':');
+        Exp f = exp();
+        expect(')');
+        return new IfExp(cond, t, f);
+    }
+
+    private LetExp let() {
+        next();
+        expect('(');
+        LinkedHashMap<String, Exp> exps = new LinkedHashMap<>();
+        do {
+            expect('(');
+            String name = identifier();
+            exps.put(name, exp());
+            expect(')');
+        } while (kind == '(');
+        expect(')');
+        Exp body = exp();
+        expect(')');
+        return new LetExp(exps, body);
+    }
+
+    private LambdaExp lambda() {
+        next();
+        expect('(');
+        ArrayList<String> params = new ArrayList<>();
+        while (kind == IDENTIFIER) params.add(identifier());
+        expect(')');
+        Exp body = exp();
+        expect(')');
+        return new LambdaExp(params, body);
+    }
+
+    // expressions up to the closing parenthesis, which is consumed, at least min of them
+    private ArrayList<Exp> operands(int min) {
+        ArrayList<Exp> list = new ArrayList<>();
+        while (kind != ')') list.add(exp());
+        next();
+        if (list.size() < min) throw UNPARSABLE;
+        return list;
+    }
+
+    // a number token, and its fraction if a dot and another number follow
+    private double number(boolean negative) {
+        intStart = start;
+        intEnd = end;
+        fracStart = fracEnd = -1;
+        next();
+        if (kind == '.') {
+            next();
+            if (kind != NUMBER) throw UNPARSABLE;
+            fracStart = start;
+            fracEnd = end;
+            next();
+        }
+        return value(negative);
+    }
+
+    // the value of the last number read, computed as the grammar's actions do
+    private double value(boolean negative) {
+        if (fracStart < 0) {
+            int n = integer(intStart, intEnd);
+            return negative ? -n : n;
+        }
+        String digits = text.subSequence(intStart, intEnd) + "." + text.subSequence(fracStart, fracEnd);
+        return Double.parseDouble(negative ? "-" + digits : digits);
+    }
+
+    // as Integer.parseInt, which it leaves long numbers to so that they fail the same way
+    private int integer(int from, int to) {
+        if (to - from > 9) return Integer.parseInt(text.subSequence(from, to).toString());
+        int n = 0;
+        for (int i = from; i < to; i++) n = 10 * n + text.charAt(i) - '0';
+        return n;
+    }
+
+    private String identifier() {
+        if (kind != IDENTIFIER) throw UNPARSABLE;
+        String name = text.subSequence(start, end).toString();
+        next();
+        return name;
+    }
+
+    private void expect(int k) {
+        if (kind != k) throw UNPARSABLE;
+        next();
+    }
+
+    // the kind of the token after the current one, if it is a keyword
+    private int peekKeyword() {
+        int p = pos, k = kind, s = start, e = end;
+        next();
+        int keyword = kind;
+        pos = p;
+        kind = k;
+        start = s;
+        end = e;
+        return keyword;
+    }
+
+    // reads the next token, skipping whitespace and comments as the ANTLR lexer does
+    private void next() {
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') {
+                pos++;
+            } else if (c == '/' && pos + 1 < length && text.charAt(pos + 1) == '*') {
+                int close = indexOf("*/", pos + 2);
+                if (close < 0) throw UNPARSABLE;
+                pos = close + 2;
+            } else if (c == '#') {
+                int eol = pos + 1;
+                while (eol < length && text.charAt(eol) != '\n' && text.charAt(eol) != '\r') eol++;
+                // #t and #f are only booleans at the end of a line, otherwise the comment is longer
+                if (eol - pos == 2 && (text.charAt(pos + 1) == 't' || text.charAt(pos + 1) == 'f')) {
+                    token(text.charAt(pos + 1) == 't' ? TRUE : FALSE, pos, eol);
+                    return;
+                }
+                pos = eol;
+            } else {
+                scan(c);
+                return;
+            }
+        }
+        token(EOF, pos, pos);
+    }
+
+    private void scan(char c) {
+        int from = pos;
+        if (c >= '0' && c <= '9') {
+            int to = from + 1;
+            while (to < length && isDigit(text.charAt(to))) to++;
+            token(NUMBER, from, to);
+        } else if (isLetter(c) || (c > 0xFF && Character.isJavaIdentifierStart(Character.codePointAt(text, from)))) {
+            int to = from + Character.charCount(Character.codePointAt(text, from));
+            while (to < length) {
+                char d = text.charAt(to);
+                if (isLetter(d) || isDigit(d)) {
+                    to++;
+                } else if (d > 0xFF && Character.isJavaIdentifierPart(Character.codePointAt(text, to))) {
+                    to += Character.charCount(Character.codePointAt(text, to));
+                } else {
+                    break;
+                }
+            }
+            token(keyword(from, to), from, to);
+        } else if (c == '/' && from + 1 < length && text.charAt(from + 1) == '/') {
+            token(INTDIV, from, from + 2);
+        } else if (c == '.' && from + 2 < length && text.charAt(from + 1) == '.' && text.charAt(from + 2) == '.') {
+            // the unused ELLIPSIS token
+            throw UNPARSABLE;
+        } else if ("()+-*/^=<>?:.".indexOf(c) >= 0) {
+            token(c, from, from + 1);
+        } else {
+            throw UNPARSABLE;
+        }
+    }
+
+    private void token(int kind, int start, int end) {
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+        pos = end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '$' || c == '_';
+    }
+
+    private static final String[] KEYWORDS = {"let", "define", "lambda", "and", "or", "pair", "first", "second", "list", "append", "if"};
+    private static final int[] KEYWORD_KINDS = {LET, DEFINE, LAMBDA, AND, OR, PAIR, FIRST, SECOND, LIST, APPEND, EOF};
+
+    private int keyword(int from, int to) {
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            String keyword = KEYWORDS[k];
+            if (keyword.length() != to - from || keyword.charAt(0) != text.charAt(from)) continue;
+            int i = 1;
+            while (i < keyword.length() && keyword.charAt(i) == text.charAt(from + i)) i++;
+            if (i < keyword.length()) continue;
+            // if is a token of the grammar that no rule uses
+            if (KEYWORD_KINDS[k] == EOF) throw UNPARSABLE;
+            return KEYWORD_KINDS[k];
+        }
+        return IDENTIFIER;
+    }
+
+    private int indexOf(String s, int from) {
+        for (int i = from; i + s.length() <= length; i++) {
+            if (text.charAt(i) == s.charAt(0) && text.charAt(i + 1) == s.charAt(1)) return i;
+        }
+        return -1;
+    }
+}
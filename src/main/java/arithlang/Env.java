@@ -1,11 +1,20 @@
 package arithlang;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public interface Env {
     Value.AssignableValue get(String k);
 
+    static Value.AssignableValue force(Value val) {
+        if(val instanceof Value.AssignableValue) return (Value.AssignableValue) val;
+        else return ((Value.PromiseVal) val).toAssignableValue();
+    }
+
     class EmptyEnv implements Env {
+        static final EmptyEnv EMPTY = new EmptyEnv();
+
         public Value.AssignableValue get(String k){
             throw new InterpreterException("No binding found for name: " + k);
         }
@@ -24,7 +33,7 @@ public interface Env {
             this.val = v;
         }
 
-        public synchronized Value.AssignableValue get(String k){
+        public Value.AssignableValue get(String k){
             if(key.equals(k)) {
                 if(val instanceof Value.AssignableValue) return  (Value.AssignableValue) val;
                 else return ((Value.PromiseVal) val).toAssignableValue();
@@ -34,29 +43,213 @@ public interface Env {
         }
     }
 
+    /**
+     * An array backed frame holding all the bindings introduced by one LetExp or one CallExp.
+     * Variables resolved by the Resolver are read by their (depth, index) address; the names
+     * are only kept for lookups by name.
+     */
+    class FrameEnv implements Env {
+        private final Env nestedEnv;
+        private final String[] names;
+        private final Value[] vals;
+
+        public FrameEnv(Env nestedEnv, String[] names, Value[] vals){
+            assert nestedEnv != null && names != null && vals != null && names.length == vals.length;
+            this.nestedEnv = nestedEnv;
+            this.names = names;
+            this.vals = vals;
+        }
+
+        public Env nestedEnv() { return nestedEnv; }
+
+        String[] names() { return names; }
+
+        /** Used while the frame is being populated, e.g. by the sequential bindings of a LetExp. */
+        void set(int index, Value v){
+            assert (v instanceof Value.AssignableValue || v instanceof Value.PromiseVal);
+            vals[index] = v;
+        }
+
+        public Value.AssignableValue get(int depth, int index){
+            FrameEnv frame = this;
+            for (int i = 0; i < depth; i++) frame = (FrameEnv) frame.nestedEnv;
+            return Env.force(frame.vals[index]);
+        }
+
+        /** Returns the raw binding, possibly an unforced promise, without evaluating anything. */
+        public Value peek(int depth, int index){
+            FrameEnv frame = this;
+            for (int i = 0; i < depth; i++) frame = (FrameEnv) frame.nestedEnv;
+            return frame.vals[index];
+        }
+
+        public Value.AssignableValue get(String k){
+            for (int i = names.length - 1; i >= 0; i--) {
+                if (vals[i] != null && names[i].equals(k)) return Env.force(vals[i]);
+            }
+            return nestedEnv.get(k);
+        }
+    }
+
+    /**
+     * The table of global definitions. Reads never lock: values live in pages of atomic slots,
+     * and a definition is a compare-and-set of an empty slot, so a name is defined exactly once
+     * even when several threads race to define it.
+     *
+     * A view of a table shares its pages, and copies a page only when it first defines a name
+     * in it. The table it was taken from is frozen, so what the views share never changes.
+     *
+     * A table may have a parent, such as the table of built-in functions, which it reads a slot
+     * from when it has not defined the slot itself. Its own definitions shadow the parent's.
+     */
     class GlobalEnv implements Env {
-        private final HashMap<String, Value> _globals;
+        // Global names are interned into slot numbers shared by every GlobalEnv, so that a
+        // resolved VarExp carries the same address whichever Evaluator runs it. A name is only
+        // interned as it is defined, and never released, so reads of names nobody defined take
+        // no slots; a VarExp resolved before its name was defined finds the slot later.
+        private static final ConcurrentHashMap<String, Integer> _slots = new ConcurrentHashMap<>();
+        private static volatile String[] _names = new String[0];
+
+        private static final int PAGE_BITS = 8;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGES = 1024;
+
+        private final GlobalEnv _parent;
+        private final AtomicReferenceArray<AtomicReferenceArray<Value>> _pages;
+        // the pages this table may write to, the others are shared; guarded by this
+        private final boolean[] _owned = new boolean[PAGES];
+        private volatile boolean _frozen;
 
         public GlobalEnv(){
-            this._globals = new HashMap<>();
+            this(null);
+        }
+
+        /** A table on top of parent, which may be null. */
+        public GlobalEnv(GlobalEnv parent){
+            this(parent, new AtomicReferenceArray<>(PAGES));
+        }
+
+        private GlobalEnv(GlobalEnv parent, AtomicReferenceArray<AtomicReferenceArray<Value>> pages){
+            this._parent = parent;
+            this._pages = pages;
         }
 
-        public synchronized Value.AssignableValue get(String k){
-            if(!_globals.containsKey(k)) throw new InterpreterException("No binding found for name: " + k);
-            Value val = _globals.get(k);
-            Value.AssignableValue ans;
-            if(val instanceof Value.AssignableValue) ans = (Value.AssignableValue) val;
-            else ans = ((Value.PromiseVal) val).toAssignableValue();
-            return ans;
+        /** Returns a new table starting with the definitions of this one, and freezes this one. */
+        public synchronized GlobalEnv view(){
+            _frozen = true;
+            AtomicReferenceArray<AtomicReferenceArray<Value>> pages = new AtomicReferenceArray<>(PAGES);
+            for (int i = 0; i < PAGES; i++) pages.set(i, _pages.get(i));
+            return new GlobalEnv(_parent, pages);
         }
 
-        public synchronized void extend(String k, Value v){
-            if (_globals.containsKey(k)) {
+        /** Returns the slot of k, or -1 if it has not been interned. */
+        public static int slotOf(String k){
+            Integer slot = _slots.get(k);
+            return slot != null ? slot : -1;
+        }
+
+        /** Returns the slot of k, giving it one if it has none; for names being defined. */
+        static int intern(String k){
+            Integer slot = _slots.get(k);
+            return slot != null ? slot : internNew(k);
+        }
+
+        private static synchronized int internNew(String k){
+            Integer interned = _slots.get(k);
+            if (interned != null) return interned;
+            int slot = _slots.size();
+            if (slot == PAGES * PAGE_SIZE) throw new InterpreterException("Too many global names, cannot define " + k);
+            String[] names = _names;
+            if (slot == names.length) names = Arrays.copyOf(names, Math.max(PAGE_SIZE, 2 * slot));
+            names[slot] = k;
+            // published before the slot, which is how readers find it
+            _names = names;
+            _slots.put(k, slot);
+            return slot;
+        }
+
+        /** The number of global names interned, by every table. */
+        public static int names(){
+            return _slots.size();
+        }
+
+        /** The number of names defined in this table, not counting its parent. */
+        public int size(){
+            int n = 0;
+            for (int i = 0; i < PAGES; i++) {
+                AtomicReferenceArray<Value> page = _pages.get(i);
+                if (page != null) for (int j = 0; j < PAGE_SIZE; j++) if (page.get(j) != null) n++;
+            }
+            return n;
+        }
+
+        /** The number of pages this table has copied or created rather than sharing. */
+        public synchronized int ownedPages(){
+            int n = 0;
+            for (boolean owned : _owned) if (owned) n++;
+            return n;
+        }
+
+        public Value.AssignableValue get(String k){
+            Integer slot = _slots.get(k);
+            if (slot == null) throw new InterpreterException("No binding found for name: " + k);
+            return get(slot);
+        }
+
+        public Value.AssignableValue get(int slot){
+            Value val = peek(slot);
+            if (val == null) throw new InterpreterException("No binding found for name: " + _names[slot]);
+            return Env.force(val);
+        }
+
+        /**
+         * Returns the raw binding of a slot, or null when neither this table nor its parent
+         * defines it or the slot is -1, see VarExp.slot.
+         */
+        public Value peek(int slot){
+            if (slot < 0) return null;
+            Value val = own(slot);
+            return val != null || _parent == null ? val : _parent.peek(slot);
+        }
+
+        // the binding of a slot in this table itself
+        private Value own(int slot){
+            AtomicReferenceArray<Value> page = _pages.get(slot >>> PAGE_BITS);
+            return page == null ? null : page.get(slot & (PAGE_SIZE - 1));
+        }
+
+        /** Whether this table itself defines k, rather than its parent or not at all. */
+        public boolean defines(String k){
+            int slot = slotOf(k);
+            return slot >= 0 && own(slot) != null;
+        }
+
+        /** Returns the raw binding of k, or null when it is not defined. */
+        public Value peek(String k){
+            int slot = slotOf(k);
+            return slot < 0 ? null : peek(slot);
+        }
+
+        public void extend(String k, Value v){
+            assert (v instanceof Value.AssignableValue || v instanceof Value.PromiseVal);
+            int slot = intern(k);
+            AtomicReferenceArray<Value> page = ownPage(slot >>> PAGE_BITS);
+            int i = slot & (PAGE_SIZE - 1);
+            if (!page.compareAndSet(i, null, v)) {
                 throw new InterpreterException("Re-declaration of variable " + k +" detected. Discarding redefinition.");
-            } else {
-                assert (v instanceof Value.AssignableValue || v instanceof Value.PromiseVal);
-                _globals.put(k, v);
             }
         }
+
+        // returns the page, copying it first if it is shared; an owned page is never replaced
+        private synchronized AtomicReferenceArray<Value> ownPage(int index){
+            if (_frozen) throw new IllegalStateException("Cannot define in a global environment that has views");
+            AtomicReferenceArray<Value> page = _pages.get(index);
+            if (_owned[index]) return page;
+            AtomicReferenceArray<Value> copy = new AtomicReferenceArray<>(PAGE_SIZE);
+            if (page != null) for (int i = 0; i < PAGE_SIZE; i++) copy.set(i, page.get(i));
+            _pages.set(index, copy);
+            _owned[index] = true;
+            return copy;
+        }
     }
 }
@@ -1,18 +1,83 @@
 package arithlang;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static arithlang.AST.*;
 import static arithlang.Value.*;
 import static arithlang.Env.*;
 
-public class Evaluator implements Visitor<Value> {
+public class Evaluator implements Backend, Visitor<Value> {
+    /**
+     * Parameter passing strategies for CallExp. VALUE evaluates every argument before the call,
+     * NAME re-evaluates a promise every time its parameter is looked up, and NEED evaluates a
+     * promise on its first lookup and remembers the result. FUTURE passes arguments as NEED
+     * does, and also starts forcing the promises of arguments that make calls on threads of
+     * their own right away, see Parallel.Speculation.
+     */
+    public enum Strategy { VALUE, NAME, NEED, FUTURE }
+
     private final Printer.Formatter formatter = new Printer.Formatter();
-    private final GlobalEnv initialEnv = new GlobalEnv();
+    private final GlobalEnv initialEnv;
+    private final Strategy strategy;
+    private final Parallel parallel;
+    private final Parallel speculation;
+
+    public Evaluator() {
+        this(Strategy.NEED);
+    }
 
+    public Evaluator(Strategy strategy) {
+        this(strategy, (ForkJoinPool) null);
+    }
+
+    /**
+     * An evaluator that evaluates the operands of arithmetic, lists and pairs on pool when they
+     * are expensive enough, see Parallel. A null pool evaluates everything on the calling thread,
+     * except for the speculations of FUTURE, which always run on threads of their own and are
+     * then limited by the size of the common pool.
+     */
+    public Evaluator(Strategy strategy, ForkJoinPool pool) {
+        this.strategy = Objects.requireNonNull(strategy, "Strategy cannot be Null");
+        this.parallel = pool == null ? null : new Parallel(pool);
+        if (strategy != Strategy.FUTURE) speculation = null;
+        else speculation = parallel != null ? parallel : new Parallel(ForkJoinPool.commonPool());
+        this.initialEnv = new GlobalEnv(Builtins.globals());
+    }
 
+    /** An evaluator that shares its global definitions with another backend, see Compiler. */
+    Evaluator(Strategy strategy, GlobalEnv globals) {
+        this.strategy = Objects.requireNonNull(strategy, "Strategy cannot be Null");
+        this.parallel = null;
+        this.speculation = null;
+        this.initialEnv = globals;
+    }
+
+    Evaluator(Evaluator origin) {
+        this.strategy = origin.strategy;
+        this.parallel = origin.parallel;
+        this.speculation = origin.speculation;
+        this.initialEnv = origin.initialEnv.view();
+    }
+
+    /**
+     * Returns an evaluator that starts with the global definitions of this one and keeps its
+     * own from then on, sharing the rest of its configuration. This one can define nothing
+     * more afterwards, see GlobalEnv.view.
+     */
+    public Evaluator fork() {
+        return new Evaluator(this);
+    }
+
+    public Strategy strategy() { return strategy; }
+
+    Parallel parallel() { return parallel; }
+
+    GlobalEnv globals() { return initialEnv; }
+
+    @Override
     public Value valueOf(Program p) {
-        return (Value) p.accept(this, initialEnv);
+        return (Value) Resolver.resolve(Optimizer.optimize(p)).accept(this, initialEnv);
     }
 
     @Override
@@ -29,6 +94,21 @@ public class Evaluator implements Visitor<Value> {
         return UnitVal.UNIT_VAL;
     }
 
+    /**
+     * Evaluates an expression expected to be a number without boxing its result. Arithmetic
+     * runs on its node tree and an IfExp passes the request on to the chosen branch; any other
+     * expression is evaluated as usual and unboxed. A result that is not a number is handed
+     * back in the exception.
+     */
+    public double evalDouble(Exp e, Env env) throws Node.UnexpectedResultException {
+        if (e instanceof NumExp n) return n.v().v();
+        if (e instanceof CompoundArithExp c) return Node.of(c).executeDouble(this, env);
+        if (e instanceof IfExp i) return evalDouble(branch(i, env), env);
+        Object o = e.accept(this, env);
+        if (o instanceof NumVal n) return n.v();
+        throw new Node.UnexpectedResultException((Value) o);
+    }
+
     @Override
     public Value visit(UnitExp e, Env env) {
         return UnitVal.UNIT_VAL;
@@ -41,197 +121,286 @@ public class Evaluator implements Visitor<Value> {
 
     @Override
     public Value visit(AddExp e, Env env) {
-        // semantics for add expression -- the result is the result of
-        // summing each of the operands
-        double result = 0;
-        List<Exp> operands = e.all();
-        for (Exp operand : operands) {
-            Object o = operand.accept(this, env);
-            if (!(o instanceof NumVal val)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-            result += val.v();
-        }
-        return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(SubExp e, Env env) {
-        // semantics for sub expression -- the result is the result of
-        // subtracting each of the operands, in sequence, from left to right
-        List<Exp> operands = e.all();
-        NumVal lVal = (NumVal) operands.get(0).accept( this, env);
-        double result = lVal.v();
-        for (int i = 1; i < operands.size(); i++) {
-            Object o = operands.get(i).accept(this, env);
-            if (!(o instanceof NumVal rVal)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-            result = result - rVal.v();
-        }
-        return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(MultExp e, Env env) {
-        // semantics for mult expression -- the result is the result of
-        // multiplying each of the operands
-        double result = 1;
-        List<Exp> operands = e.all();
-        for (Exp operand : operands) {
-            Object o = operand.accept(this, env);
-            if (!(o instanceof NumVal val)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-            result *= val.v();
-        }
-        return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(DivExp e, Env env) {
-            // semantics for div expression -- the result is the result of
-            // dividing each of the operands, in sequence, from left to
-            // right
-            List<Exp> operands = e.all();
-            NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-            double result = lVal.v();
-            for (int i = 1; i < operands.size(); i++) {
-                Object o = operands.get(i).accept(this, env);
-                if (!(o instanceof NumVal rVal)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-                result = result / rVal.v();
-            }
-            return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(IntDivExp e, Env env) {
-        // semantics for div expression -- the result is the result of
-        // dividing each of the operands, in sequence, from left to
-        // right
-        List<Exp> operands = e.all();
-        NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-        double result = lVal.v();
-        for (int i = 1; i < operands.size(); i++) {
-            Object o = operands.get(i).accept(this, env);
-            if (!(o instanceof NumVal rVal)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-            result = ((int) (result / rVal.v()));
-        }
-        return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(PowExp e, Env env) {
-        // semantics for mult expression -- the result is the result of
-        // multiplying each of the operands
-        double result = 1;
-        List<Exp> operands = e.all();
-        for (int i = operands.size() - 1; i >= 0; i--) {
-            Object o = operands.get(i).accept(this, env);
-            if (!(o instanceof NumVal val)) throw new InterpreterException("Expression does not evaluate to numerical value " + formatter.visit(e, env));
-            result = Math.pow(val.v(), result);
-        }
-        return new NumVal(result);
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(VarExp e, Env env) {
+        int depth = e.depth();
+        if (depth >= 0) return ((FrameEnv) env).get(depth, e.index());
+        if (depth == VarExp.GLOBAL) {
+            int slot = e.slot();
+            return slot >= 0 ? initialEnv.get(slot) : initialEnv.get(e.name());
+        }
         return env.get(e.name());
     }
 
     @Override
     public Value visit(LetExp e, Env env) {
-        LinkedHashMap<String, Exp> exps = e.getDeclaration();
+        return trampoline(e, env);
+    }
 
-        Env new_env = env;
-        for (Map.Entry<String, Exp> entry : e.getDeclaration().entrySet()){
-            new_env = new ExtendEnv(new_env, entry.getKey(), (AssignableValue) entry.getValue().accept(this, new_env));
-        }
+    private Env letEnv(LetExp e, Env env) {
+        Exp[] exps = e.exps();
 
-        return (Value) e.getBody().accept(this, new_env);
+        // bindings are sequential: each one sees the ones before it in the same frame
+        FrameEnv new_env = new FrameEnv(env, e.names(), new Value[exps.length]);
+        for (int i = 0; i < exps.length; i++) {
+            new_env.set(i, (AssignableValue) exps[i].accept(this, new_env));
+        }
+        return new_env;
     }
 
     @Override
     public Value visit(LambdaExp e, Env env) {
-        return new FuncVal(e.body(), e.params(), env);
+        return FuncVal.of(e, env);
     }
 
     @Override
     public Value visit(CallExp e, Env env) {
-        Exp operator = e.e();
-        List<Exp> operands = e.args();
+        return trampoline(e, env);
+    }
 
+    /**
+     * A monomorphic inline cache: a call site whose operator is a global remembers the function
+     * it last called, and while the global is that function, as it stays once defined, the site
+     * calls it without evaluating the operator or checking it again. A site shared by
+     * evaluators with other definitions of the global rebinds to the one it finds on a miss.
+     */
+    private FuncVal callee(CallExp e, Env env) {
+        Exp operator = e.e();
+        FuncVal cached = e.callee();
+        if (cached != null && initialEnv.peek(((VarExp) operator).slot()) == cached) return cached;
         Object o = operator.accept(this, env);
         if (!(o instanceof FuncVal func)) throw new InterpreterException("Operator not a function in call " + formatter.visit(e, env));
+        if (func.params().size() != e.args().size()) throw new InterpreterException("Argument mismatch in call " + formatter.visit(e, env));
+        // only a function bound as it is, so that a global holding a promise does not rebind on every call
+        if (func != cached && operator instanceof VarExp v && v.depth() == VarExp.GLOBAL && initialEnv.peek(v.slot()) == func) e.setCallee(func);
+        return func;
+    }
+
+    private Env callEnv(CallExp e, FuncVal func, Env env, List<Parallel.Speculation> started) {
+        List<Exp> operands = e.args();
+        Value[] args = new Value[operands.size()];
+        for (int i = 0; i < args.length; i++) {
+            Exp operand = operands.get(i);
+            args[i] = switch (strategy) {
+                // Call by Value Semantics
+                case VALUE -> {
+                    Object t = operand.accept(this, env);
+                    if (!(t instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + formatter.visit(e, env));
+                    yield val;
+                }
+                // Call by Name (Promise) Semantics
+                case NAME -> new PromiseVal(this, operand, env);
+                // Call by Need Semantics
+                case NEED -> needArg(operand, env);
+                // Call by Need, forcing the promises of arguments that make calls ahead of time
+                case FUTURE -> {
+                    Value val = needArg(operand, env);
+                    if (val instanceof PromiseVal p && !Parallel.bounded(operand)) speculation.speculate(p, started);
+                    yield val;
+                }
+            };
+        }
+        return new FrameEnv(func.env(), func.names(), args);
+    }
+
+    /**
+     * A call by need argument that is cheap, i.e. built only from literals, variables whose
+     * values are already known and the operators listed in operands, is evaluated right away
+     * instead of being wrapped in a promise. This keeps accumulating tail calls such as
+     * (f (- n 1) (+ acc n)) or (f (- n 1) (append n acc)) from building a chain of promises as
+     * deep as the loop. Evaluating such an argument always terminates; if it fails,
+     * it becomes a promise so the error is only raised when the parameter is used.
+     */
+    private Value needArg(Exp exp, Env env) {
+        if (cheap(exp, env, known, CHEAP_BUDGET) > 0) {
+            try {
+                if (exp.accept(this, env) instanceof AssignableValue val) return val;
+            } catch (InterpreterException ex) {
+                // fall back to a promise and let the callee decide
+            }
+        }
+        return new PromiseVal(this, exp, env, true);
+    }
+
+    static final int CHEAP_BUDGET = 16;
 
-        if (func.params().size() != operands.size()) throw new InterpreterException("Argument mismatch in call " + formatter.visit(e, env));
+    /** Tells cheap whether the value of a variable in env is known, and if asked, a number. */
+    @FunctionalInterface
+    interface Known {
+        boolean test(VarExp v, Env env, boolean number);
+    }
 
-//        // Call by Value Semantics
-//        List<AssignableValue> args = operands.stream().map(i -> {
-//            Object t = i.accept(this, env);
-//            if (!(t instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + formatter.visit(e, env));
-//            return (AssignableValue) val;
-//        }).toList();
+    private final Known known = this::isKnown;
 
-        // Call by Promise Semantics
-        List<PromiseVal> args = operands.stream().map(i -> new PromiseVal(this, i, env)).toList();
+    private boolean isKnown(VarExp v, Env env, boolean number) {
+        Value val;
+        if (v.depth() >= 0) val = ((FrameEnv) env).peek(v.depth(), v.index());
+        else if (v.depth() == VarExp.GLOBAL) val = initialEnv.peek(v.slot());
+        else return false;
+        if (val instanceof PromiseVal p) val = p.isForced() ? p.toAssignableValue() : null;
+        return number ? val instanceof NumVal : val instanceof AssignableValue;
+    }
 
-        Env func_env = func.env();
-        for (int i = 0; i < args.size(); i++) func_env = new ExtendEnv(func_env, func.params().get(i), args.get(i));
+    /**
+     * Returns the remaining budget, or 0 when exp is not cheap: built only from literals, known
+     * variables and the operators of operands, whose errors are all InterpreterExceptions. The
+     * one exception is the left operand of -, / and //, which is cast rather than checked (see
+     * Node.DoubleArith), so it must be a number, arithmetic, or a variable known to be a number.
+     */
+    static int cheap(Exp exp, Env env, Known known, int budget) {
+        return cheap(exp, env, known, false, budget);
+    }
+
+    private static int cheap(Exp exp, Env env, Known known, boolean number, int budget) {
+        if (--budget <= 0) return 0;
+        if (exp instanceof NumExp) return budget;
+        if (exp instanceof BoolExp) return number ? 0 : budget;
+        if (exp instanceof VarExp v) return known.test(v, env, number) ? budget : 0;
+        List<Exp> operands = operands(exp);
+        if (operands == null || number && !(exp instanceof CompoundArithExp)) return 0;
+        boolean cast = exp instanceof SubExp || exp instanceof DivExp || exp instanceof IntDivExp;
+        for (int i = 0; i < operands.size(); i++) {
+            budget = cheap(operands.get(i), env, known, cast && i == 0, budget);
+            if (budget == 0) return 0;
+        }
+        return budget;
+    }
 
-        Object t = func.body().accept(this, func_env);
-        if (!(t instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to assignable value " + formatter.visit(e, env));
-        return val;
+    /**
+     * The operands of an operator whose evaluation takes constant time once they are known:
+     * arithmetic, comparisons, and building or taking apart pairs and lists. Returns null for
+     * any other expression.
+     */
+    static List<Exp> operands(Exp exp) {
+        if (exp instanceof CompoundExp c) return c.all();
+        if (exp instanceof ListExp l) return l.all();
+        if (exp instanceof AppendExp a) return List.of(a.list(), a.e());
+        if (exp instanceof PairExp p) return List.of(p.first(), p.second());
+        if (exp instanceof FirstExp f) return List.of(f.exp());
+        if (exp instanceof SecondExp s) return List.of(s.exp());
+        return null;
     }
 
     @Override
     public Value visit(IfExp e, Env env) {
+        return trampoline(e, env);
+    }
+
+    private Exp branch(IfExp e, Env env) {
         Object o = e.cond().accept(this, env);
         if (!(o instanceof AssignableValue val)) throw new InterpreterException("Expression does not evaluate to an assignable value " + formatter.visit(e, env));
-        if(val.toBool().v()) return (Value) e.t_exp().accept(this, env);
-        else return (Value) e.f_exp().accept(this, env);
+        return val.toBool().v() ? e.t_exp() : e.f_exp();
+    }
+
+    /**
+     * Evaluates exp, running the expressions in tail position of IfExp, LetExp and CallExp in
+     * this loop rather than through a recursive accept, so a chain of tail calls uses constant
+     * Java stack.
+     */
+    private Value trampoline(Exp exp, Env env) {
+        if (speculation == null) return trampoline(exp, env, null);
+        List<Parallel.Speculation> started = new ArrayList<>(0);
+        try {
+            return trampoline(exp, env, started);
+        } finally {
+            // the calls made here have returned, so their arguments are unlikely to be used now
+            for (Parallel.Speculation s : started) s.cancel();
+        }
+    }
+
+    private Value trampoline(Exp exp, Env env, List<Parallel.Speculation> started) {
+        CallExp call = null, first = null;
+        Env callEnv = null;
+        Metrics.CallEvent event = null;
+        int tails = 0;
+        try {
+            while (true) {
+                if (started != null || parallel != null) Parallel.poll();
+                if (exp instanceof IfExp e) {
+                    exp = branch(e, env);
+                } else if (exp instanceof LetExp e) {
+                    env = letEnv(e, env);
+                    exp = e.getBody();
+                } else if (exp instanceof CallExp e) {
+                    FuncVal func = callee(e, env);
+                    Env args = callEnv(e, func, env, started);
+                    enter(func, call != null);
+                    if (call == null) {
+                        first = e;
+                        event = Metrics.beginCall();
+                    } else {
+                        tails++;
+                    }
+                    call = e;
+                    callEnv = env;
+                    env = args;
+                    exp = func.body();
+                } else {
+                    Object t = exp.accept(this, env);
+                    if (call != null && !(t instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to assignable value " + formatter.visit(call, callEnv));
+                    return (Value) t;
+                }
+            }
+        } finally {
+            if (call != null) {
+                leave();
+                Metrics.called(event, tails, env, first);
+            }
+        }
+    }
+
+    /**
+     * Called by trampoline as it starts running the body of func, after evaluating the
+     * arguments. A tail call replaces the call made before it by the same trampoline, and
+     * leave is called once, when the last of them returns or fails. See Profiler.
+     */
+    void enter(FuncVal func, boolean tail) {
+    }
+
+    void leave() {
     }
 
     @Override
     public Value visit(EqualExp e, Env env) {
-        List<Exp> operands = e.all();
-        Object o = operands.get(0).accept(this, env);
-        if (!(o instanceof AssignableValue l)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-        AssignableValue r;
-        for (int i=1; i<operands.size(); i++) {
-            o = operands.get(i).accept(this, env);
-            if (!(o instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-            r = (AssignableValue) o;
-            if(!l.eq(r).v()) return BoolVal.FalseVal;
-            l = r;
-        }
-        return BoolVal.TrueVal;
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(GtExp e, Env env) {
-        List<Exp> operands = e.all();
-        Object o = operands.get(0).accept(this, env);
-        if (!(o instanceof AssignableValue l)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-        AssignableValue r;
-        for (int i=1; i<operands.size(); i++) {
-            o = operands.get(i).accept(this, env);
-            if (!(o instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-            r = (AssignableValue) o;
-            if(l.comp(r).v() <= 0) return BoolVal.FalseVal;
-            l = r;
-        }
-        return BoolVal.TrueVal;
+        return Node.of(e).execute(this, env);
     }
 
     @Override
     public Value visit(LtExp e, Env env) {
-        List<Exp> operands = e.all();
-        Object o = operands.get(0).accept(this, env);
-        if (!(o instanceof AssignableValue l)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-        AssignableValue r;
-        for (int i=1; i<operands.size(); i++) {
-            o = operands.get(i).accept(this, env);
-            if (!(o instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to Assignable value " + formatter.visit(e, env));
-            r = (AssignableValue) o;
-            if(l.comp(r).v() >= 0) return BoolVal.FalseVal;
-            l = r;
-        }
-        return BoolVal.TrueVal;
+        return Node.of(e).execute(this, env);
     }
 
     @Override
@@ -263,7 +432,15 @@ public class Evaluator implements Visitor<Value> {
 
     @Override
     public Value visit(PairExp e, Env env) {
-        Object a = e.first().accept(this, env), b = e.second().accept(this, env);
+        Object a, b;
+        if (parallel != null && parallel.accepts(e.site())) {
+            Object[] values = parallel.evaluate(e.site(), i -> (i == 0 ? e.first() : e.second()).accept(this, env));
+            a = values[0];
+            b = values[1];
+        } else {
+            a = e.first().accept(this, env);
+            b = e.second().accept(this, env);
+        }
         if(!(a instanceof AssignableValue i)) throw new InterpreterException("Exps in a pair must evaluate to an assignable value");
         if(!(b instanceof AssignableValue j)) throw new InterpreterException("Exps in a pair must evaluate to an assignable value");
         return new PairVal(i, j);
@@ -285,13 +462,16 @@ public class Evaluator implements Visitor<Value> {
 
     @Override
     public Value visit(ListExp e, Env env) {
-        ListVal ans = ListVal.EMPTY_LIST;
-        for(Exp i: e.all()){
-            Object o = i.accept(this, env);
+        // each element is consed onto the ones before it, so the last one comes first
+        List<Exp> exps = e.all();
+        Object[] values = parallel != null && parallel.accepts(e.site()) ? parallel.evaluate(e.site(), i -> exps.get(i).accept(this, env)) : null;
+        AssignableValue[] items = new AssignableValue[exps.size()];
+        for (int i = 0; i < items.length; i++) {
+            Object o = values != null ? values[i] : exps.get(i).accept(this, env);
             if(!(o instanceof AssignableValue a)) throw new InterpreterException("Exps in a List must evaluate to an assignable value");
-            ans = new ListVal(a, ans);
+            items[items.length - 1 - i] = a;
         }
-        return ans;
+        return ListVal.of(items);
     }
 
     @Override
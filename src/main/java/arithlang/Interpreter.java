@@ -2,30 +2,58 @@ package arithlang;
 
 import arithlang.AST.Program;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
 
 /**
  * This main class implements the Read-Eval-Print-Loop of the interpreter with
  * the help of Reader, Evaluator, and Printer classes.
  *
+ * Usage: Interpreter [--compile] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--profile[=file]] [--antlr]
+ *
  * @author hridesh, clay
  */
 public class Interpreter {
+    private static final List<String> initializers = List.of(
+            "run inbuilt/math.fl", "run inbuilt/identity.fl",
+            "run inbuilt/data.fl"
+    );
+    private static final String DEFAULT_SNAPSHOT = "build/prelude.snapshot";
+    private static final String DEFAULT_PROFILE = "build/profile.collapsed";
+    private static final String USAGE = "Usage: Interpreter [--compile] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--profile[=file]] [--antlr]";
+    // the most threads a ForkJoinPool takes
+    static final int MAX_THREADS = 0x7fff;
+
     public static void main(String[] args) throws Exception {
-       try(Reader reader = new Reader()) {
-           Evaluator eval = new Evaluator();
+       String bad = badNumber(args);
+       if (bad != null) {
+           System.err.println(bad);
+           System.err.println(USAGE);
+           return;
+       }
+       try(Reader reader = new Reader(parser(args))) {
+           boolean compile = Arrays.asList(args).contains("--compile");
+           String unsupported = compile ? notCompilable(args) : null;
+           if (unsupported != null) {
+               System.err.println("--compile cannot be used with " + unsupported + ", see Compiler");
+               return;
+           }
+           Path profile = profileFile(args);
+           Profiler profiler = profile == null ? null : new Profiler();
+           Backend eval = compile ? new Compiler(strategy(args))
+                   : profiler != null ? profiler.evaluator(strategy(args), pool(args)) : new Evaluator(strategy(args), pool(args));
            Printer printer = new Printer();
 
-           List<String> initializers = List.of(
-                   "run inbuilt/math.fl", "run inbuilt/identity.fl",
-                   "run inbuilt/data.fl"
-           );
-           for (String i : initializers) {
-               Program p = reader.parse(reader.runFile(i));
-               printer.print(p);
-               Value val = eval.valueOf(p);
-               printer.print(val);
-           }
+           prelude(reader, eval, printer, snapshotFile(args));
 
 
            System.out.println("""
@@ -37,26 +65,170 @@ public class Interpreter {
            while (true) {
                Program p;
                try {
-                   p = reader.read();
+                   String programText = reader.readNextProgram();
+                   if (isMetricsCommand(programText)) {
+                       System.out.println(Metrics.snapshot(eval instanceof Evaluator e ? e.globals() : null));
+                       continue;
+                   }
+                   p = programText == null ? null : reader.run(programText);
                    if (p == null) {
                        System.out.println();
+                       if (profiler != null) {
+                           profiler.close();
+                           System.err.print(profiler.report(20));
+                           profiler.writeCollapsed(profile);
+                           System.err.println("Collapsed stacks written to " + profile + " and " + profile + ".alloc");
+                       }
                        break;
                    } else if (p.e() == null) {
                        System.out.println();
                        continue;
                    }
                    printer.print(p);
+                   long evaluating = System.nanoTime();
                    Value val = eval.valueOf(p);
+                   long printing = System.nanoTime();
+                   Metrics.EVALUATE.record(printing - evaluating);
                    printer.print(val);
+                   Metrics.PRINT.record(System.nanoTime() - printing);
                }
                catch (InterpreterException e) {
+                   Metrics.error();
                    printer.print(e);
                }
                catch (Exception e){
+                   Metrics.error();
                    System.out.println(e.getMessage());
                }
 
            }
        }
     }
+
+    // :metrics prints the metrics; it is not a valid program, so it hides no program's meaning
+    static boolean isMetricsCommand(String programText) {
+        return programText != null && programText.strip().equals(":metrics");
+    }
+
+    // the first option that works on the Evaluator alone, or null
+    static String notCompilable(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--speculate") || arg.startsWith("--parallel") || arg.startsWith("--profile")) return arg;
+        }
+        return null;
+    }
+
+    // --antlr parses with the ANTLR parser alone, rather than trying the hand-written one first
+    static Reader.Parser parser(String[] args) {
+        return Arrays.asList(args).contains("--antlr") ? Reader.Parser.ANTLR : Reader.Parser.DESCENT;
+    }
+
+    // --profile samples the Evaluator, writing collapsed stacks to DEFAULT_PROFILE on exit,
+    // --profile=file to the given file
+    static Path profileFile(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--profile")) return Path.of(DEFAULT_PROFILE);
+            if (arg.startsWith("--profile=")) return Path.of(arg.substring("--profile=".length()));
+        }
+        return null;
+    }
+
+    // --speculate forces the promises of expensive arguments ahead of their use
+    static Evaluator.Strategy strategy(String[] args) {
+        return Arrays.asList(args).contains("--speculate") ? Evaluator.Strategy.FUTURE : Evaluator.Strategy.NEED;
+    }
+
+    // --parallel evaluates expensive operands on a thread per core, --parallel=n on n threads
+    static ForkJoinPool pool(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--parallel")) return new ForkJoinPool();
+            if (arg.startsWith("--parallel=")) return new ForkJoinPool(Integer.parseInt(arg.substring("--parallel=".length())));
+        }
+        return null;
+    }
+
+    // the first of --parallel=n, --threads=n and --port=n whose n is not a number in range, as a message
+    static String badNumber(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--parallel=") || arg.startsWith("--threads=")) {
+                if (!inRange(arg, 1, MAX_THREADS)) return arg + " is not a number from 1 to " + MAX_THREADS;
+            } else if (arg.startsWith("--port=")) {
+                if (!inRange(arg, 0, 0xffff)) return arg + " is not a port from 0 to " + 0xffff;
+            }
+        }
+        return null;
+    }
+
+    private static boolean inRange(String arg, int min, int max) {
+        try {
+            int n = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            return min <= n && n <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // --snapshot boots from DEFAULT_SNAPSHOT, --snapshot=file from the given file
+    static Path snapshotFile(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--snapshot")) return Path.of(DEFAULT_SNAPSHOT);
+            if (arg.startsWith("--snapshot=")) return Path.of(arg.substring("--snapshot=".length()));
+        }
+        return null;
+    }
+
+    /**
+     * Runs the initializers. With a snapshot file that is up to date with their source, they are
+     * loaded from it instead; otherwise they are run from source and the snapshot is written
+     * for the next start.
+     */
+    static void prelude(Reader reader, Backend eval, Printer printer, Path snapshot) throws IOException {
+        long checksum = snapshot == null ? 0 : checksum(reader);
+        if (snapshot != null) {
+            try {
+                Snapshot s = Snapshot.read(snapshot, checksum);
+                if (s != null) {
+                    for (Map.Entry<Program, Value> loaded : s.load(eval)) {
+                        printer.print(loaded.getKey());
+                        printer.print(loaded.getValue());
+                    }
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                // nothing has been defined from a snapshot that fails to load, see Snapshot.load
+                System.err.println("Ignoring snapshot: " + e);
+            }
+        }
+
+        List<Program> programs = new ArrayList<>();
+        for (String i : initializers) {
+            Program p = reader.run(i);
+            printer.print(p);
+            Value val = eval.valueOf(p);
+            printer.print(val);
+            programs.add(p);
+        }
+        if (snapshot != null) {
+            // only the Evaluator's definitions can be saved, compiled functions have no AST
+            Evaluator ev = eval instanceof Evaluator e ? e : new Evaluator();
+            if (ev != eval) for (Program p : programs) ev.valueOf(p);
+            try {
+                if (snapshot.toAbsolutePath().getParent() != null) Files.createDirectories(snapshot.toAbsolutePath().getParent());
+                Snapshot.write(snapshot, checksum, programs, ev.globals());
+            } catch (IOException | InterpreterException e) {
+                System.err.println("Could not write snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    // changes whenever one of the initializer files does, without reading them
+    private static long checksum(Reader reader) throws IOException {
+        CRC32 crc = new CRC32();
+        for (String i : initializers) {
+            Path file = reader.programFile(i);
+            crc.update(i.getBytes(StandardCharsets.UTF_8));
+            crc.update(ByteBuffer.allocate(16).putLong(Files.size(file)).putLong(Files.getLastModifiedTime(file).toMillis()).flip());
+        }
+        return crc.getValue();
+    }
 }
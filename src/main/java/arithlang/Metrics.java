@@ -0,0 +1,259 @@
+package arithlang;
+
+import arithlang.Env.FrameEnv;
+import arithlang.Env.GlobalEnv;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the interpreter, kept for the life of the process. The
+ * counters are LongAdders, striped across threads so that parallel evaluation and the sessions
+ * of a Server do not contend on them. Calls, promises and their forcings are too many to count
+ * each one: one trampoline in SAMPLE counts its calls and env depth SAMPLE times, and one
+ * promise or forcing in SAMPLE counts as SAMPLE, so those counts are right on average.
+ * snapshot returns them all as text.
+ *
+ * Calls and the forcing of promises are also JFR events, arithlang.Call and arithlang.Force,
+ * which are created only while a recording enables them, e.g. java -XX:StartFlightRecording.
+ */
+public final class Metrics {
+    public static final Histogram PARSE = new Histogram();
+    public static final Histogram EVALUATE = new Histogram();
+    public static final Histogram PRINT = new Histogram();
+
+    static final int SAMPLE = 64;
+    private static final EventType CALL = EventType.getEventType(CallEvent.class);
+    private static final EventType FORCE = EventType.getEventType(ForceEvent.class);
+
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder calls = new LongAdder();
+    private static final LongAdder tailCalls = new LongAdder();
+    private static final LongAdder promises = new LongAdder();
+    private static final LongAdder forcings = new LongAdder();
+    private static final LongAdder optimized = new LongAdder();
+    private static final LongAdder nodesBefore = new LongAdder();
+    private static final LongAdder nodesAfter = new LongAdder();
+    // sampled trampolines by the depth of the env chain their last call ran in, the last one
+    // counting that depth and deeper
+    private static final LongAdder[] depths = new LongAdder[17];
+
+    static {
+        for (int i = 0; i < depths.length; i++) depths[i] = new LongAdder();
+    }
+
+    private Metrics() {}
+
+    /** Counts a program that failed to parse or evaluate. */
+    public static void error() {
+        errors.increment();
+    }
+
+    static void promise() {
+        sample(promises);
+    }
+
+    private static boolean sampled() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE) == 0;
+    }
+
+    private static void sample(LongAdder counter) {
+        if (sampled()) counter.add(SAMPLE);
+    }
+
+    /** Returns a begun event for a call, or null if no recording enables it. */
+    static CallEvent beginCall() {
+        if (!CALL.isEnabled()) return null;
+        CallEvent event = new CallEvent();
+        event.begin();
+        return event;
+    }
+
+    /** Returns a begun event for the forcing of a promise, or null if no recording enables it. */
+    static ForceEvent beginForce() {
+        if (!FORCE.isEnabled()) return null;
+        ForceEvent event = new ForceEvent();
+        event.begin();
+        return event;
+    }
+
+    /** Counts a program the Optimizer rewrote, and its nodes before and after. */
+    static void optimized(int before, int after) {
+        optimized.increment();
+        nodesBefore.add(before);
+        nodesAfter.add(after);
+    }
+
+    /**
+     * Counts, if sampled, the calls run by one trampoline, the first and the tail calls after
+     * it, which ran in env, and commits its event, if any.
+     */
+    static void called(CallEvent event, int tails, Env env, AST.CallExp call) {
+        if (sampled()) {
+            calls.add((tails + 1) * SAMPLE);
+            if (tails > 0) tailCalls.add(tails * SAMPLE);
+            depths[depth(env)].add(SAMPLE);
+        }
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.call = new Printer.Formatter().visit(call, null);
+            event.tailCalls = tails;
+            event.depth = depth(env);
+            event.commit();
+        }
+    }
+
+    private static int depth(Env env) {
+        int depth = 0;
+        for (Env e = env; e instanceof FrameEnv f && depth < depths.length - 1; e = f.nestedEnv()) depth++;
+        return depth;
+    }
+
+    /** Counts the forcing of a promise of exp, and commits its event, if any. */
+    static void forced(ForceEvent event, AST.Exp exp, boolean memoized) {
+        sample(forcings);
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            // a compiled expression would run rather than format itself
+            AST.Exp source = exp instanceof Compiler.Unit u ? u.source() : exp;
+            event.expression = (String) source.accept(new Printer.Formatter(), null);
+            event.memoized = memoized;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the metrics as text: the latencies of each phase, the counters, and the sizes of
+     * the global names and, when given, of a global environment.
+     */
+    public static String snapshot(GlobalEnv globals) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("parse     ").append(PARSE).append('\n');
+        sb.append("evaluate  ").append(EVALUATE).append('\n');
+        sb.append("print     ").append(PRINT).append('\n');
+        sb.append("errors    ").append(errors.sum()).append('\n');
+        sb.append("calls     about ").append(calls.sum()).append(", ").append(tailCalls.sum()).append(" of them tail calls\n");
+        sb.append("promises  about ").append(promises.sum()).append(" created, ").append(forcings.sum()).append(" forced\n");
+        sb.append("optimizer ").append(optimized.sum()).append(" programs, ").append(nodesBefore.sum()).append(" nodes before, ")
+                .append(nodesAfter.sum()).append(" after\n");
+        sb.append("env depth (sampled)");
+        for (int i = 0; i < depths.length; i++) {
+            long n = depths[i].sum();
+            if (n > 0) sb.append(' ').append(i).append(i == depths.length - 1 ? "+:" : ":").append(n);
+        }
+        sb.append('\n');
+        sb.append("globals   ").append(GlobalEnv.names()).append(" names");
+        if (globals != null) sb.append(", ").append(globals.size()).append(" defined, ").append(globals.ownedPages()).append(" pages copied");
+        sb.append('\n');
+        sb.append(Reader.cache());
+        return sb.toString();
+    }
+
+    /**
+     * A histogram of durations in nanoseconds, in the manner of HdrHistogram: each power of two
+     * is split into 16 buckets, so a recorded value is known to within 1/16th, in a fixed
+     * thousand counters whatever the range of values.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // the largest value counted by a bucket
+        static long highest(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        /** Returns the value that p percent of the recorded values are at most, or 0 if none are. */
+        public long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * n)), seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highest(i), max());
+            }
+            return max();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d, mean %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us", count(),
+                    mean() / 1000, percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, max() / 1000.0);
+        }
+    }
+
+    @Name("arithlang.Call")
+    @Label("Call")
+    @Category("ArithLang")
+    @Description("A call made by the Evaluator and the tail calls made after it, until the last returned")
+    @StackTrace(false)
+    static final class CallEvent extends Event {
+        @Label("Call")
+        String call;
+
+        @Label("Tail Calls")
+        int tailCalls;
+
+        @Label("Env Depth")
+        @Description("The depth of the env chain the last call ran in")
+        int depth;
+    }
+
+    @Name("arithlang.Force")
+    @Label("Force")
+    @Category("ArithLang")
+    @Description("The evaluation of the expression of a promise when it is first needed")
+    @StackTrace(false)
+    static final class ForceEvent extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Memoized")
+        boolean memoized;
+    }
+}
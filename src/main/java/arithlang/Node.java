@@ -0,0 +1,362 @@
+package arithlang;
+
+import java.util.List;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+
+/**
+ * Executable nodes for arithmetic and comparison expressions. The Evaluator builds a tree of
+ * nodes from a CompoundExp the first time it runs it, and keeps it on the AST.
+ *
+ * Nodes rewrite themselves as they learn the types they see: an arithmetic or comparison node
+ * starts uninitialized, and on its first execution replaces itself with a version specialized
+ * for numbers that passes unboxed doubles between nodes. A numeric comparison that later sees
+ * some other value deoptimizes, replacing itself with the generic version, and finishes the
+ * comparison with the values it already computed. Any other expression is a leaf node that is
+ * evaluated by the Evaluator.
+ *
+ * Programs are shared between threads, so their trees are too. A tree is built and linked before
+ * it is published on the AST, and a rewrite links the new node before it puts it in the tree,
+ * under a lock that also guards parent and owner. Rewrites are rare, so executing nodes take no
+ * lock: a node other threads see has its operands in final fields, and is either the old node or
+ * the new one, which compute the same value.
+ */
+public abstract class Node {
+    private static final Printer.Formatter formatter = new Printer.Formatter();
+    private static final Object rewrites = new Object();
+
+    // guarded by rewrites once the tree is published
+    Node parent;
+    CompoundExp owner;
+
+    public abstract Value execute(Evaluator ev, Env env);
+
+    public double executeDouble(Evaluator ev, Env env) throws UnexpectedResultException {
+        Value val = execute(ev, env);
+        if (val instanceof NumVal n) return n.v();
+        throw new UnexpectedResultException(val);
+    }
+
+    /** Returns the node tree of e, building it on first use. */
+    public static Node of(CompoundExp e) {
+        Node node = e.node();
+        if (node == null) {
+            node = build(e);
+            node.owner = e;
+            // a thread that loses the race runs the tree the winner published
+            if (!e.casNode(null, node)) node = e.node();
+        }
+        return node;
+    }
+
+    private static Node build(Exp e) {
+        if (e instanceof NumExp n) return new Literal(n.v());
+        if (e instanceof VarExp v && v.depth() >= 0) return new LocalRead(v);
+        if (e instanceof CompoundArithExp c) return new UninitializedArith(c, children(c.all())).adopt();
+        if (e instanceof EqualExp || e instanceof GtExp || e instanceof LtExp) {
+            CompoundBoolExp c = (CompoundBoolExp) e;
+            return new UninitializedCompare(c, children(c.all())).adopt();
+        }
+        return new Generic(e);
+    }
+
+    private static Node[] children(List<Exp> operands) {
+        Node[] children = new Node[operands.size()];
+        for (int i = 0; i < children.length; i++) children[i] = build(operands.get(i));
+        return children;
+    }
+
+    /**
+     * Puts node in the place of this one, in its parent or on the AST, and returns it to run in
+     * this one's place. If another thread has replaced this node already, node is left out of the
+     * tree and only runs this once.
+     */
+    protected final <T extends Node> T replace(T node) {
+        synchronized (rewrites) {
+            if (parent != null ? !parent.hasChild(this) : owner == null || owner.node() != this) return node;
+            node.parent = parent;
+            node.owner = owner;
+            node.adopt();
+            if (parent != null) parent.replaceChild(this, node);
+            else owner.setNode(node);
+        }
+        return node;
+    }
+
+    /** Makes this node the parent of its children. */
+    Node adopt() { return this; }
+
+    boolean hasChild(Node child) { return false; }
+
+    protected void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass() + " has no children");
+    }
+
+    protected static String format(Exp e) {
+        return (String) e.accept(formatter, null);
+    }
+
+    /** Thrown by a node that was asked for a double and produced some other value. */
+    public static final class UnexpectedResultException extends Exception {
+        private final Value result;
+
+        public UnexpectedResultException(Value result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+
+        public Value result() { return result; }
+    }
+
+    static final class Literal extends Node {
+        private final NumVal val;
+
+        Literal(NumVal val) { this.val = val; }
+
+        public Value execute(Evaluator ev, Env env) { return val; }
+
+        public double executeDouble(Evaluator ev, Env env) { return val.v(); }
+    }
+
+    static final class LocalRead extends Node {
+        private final int depth;
+        private final int index;
+
+        LocalRead(VarExp v) {
+            depth = v.depth();
+            index = v.index();
+        }
+
+        public Value execute(Evaluator ev, Env env) { return ((Env.FrameEnv) env).get(depth, index); }
+    }
+
+    static final class Generic extends Node {
+        private final Exp exp;
+
+        Generic(Exp exp) { this.exp = exp; }
+
+        public Value execute(Evaluator ev, Env env) { return (Value) exp.accept(ev, env); }
+
+        public double executeDouble(Evaluator ev, Env env) throws UnexpectedResultException { return ev.evalDouble(exp, env); }
+    }
+
+    abstract static class Operation extends Node {
+        protected final CompoundExp site;
+        protected final Node[] children;
+
+        Operation(CompoundExp site, Node[] children) {
+            this.site = site;
+            this.children = children;
+        }
+
+        @Override
+        Node adopt() {
+            for (Node child : children) child.parent = this;
+            return this;
+        }
+
+        @Override
+        boolean hasChild(Node child) {
+            for (Node c : children) if (c == child) return true;
+            return false;
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < children.length; i++) if (children[i] == oldChild) children[i] = newChild;
+        }
+    }
+
+    /**
+     * An arithmetic node that has not run yet. Arithmetic is only defined on numbers, so the
+     * double version is its only specialization; a non-number operand is an error in both.
+     */
+    static final class UninitializedArith extends Operation {
+        UninitializedArith(CompoundArithExp site, Node[] children) { super(site, children); }
+
+        public Value execute(Evaluator ev, Env env) {
+            return replace(new DoubleArith((CompoundArithExp) site, children)).execute(ev, env);
+        }
+
+        public double executeDouble(Evaluator ev, Env env) {
+            return replace(new DoubleArith((CompoundArithExp) site, children)).executeDouble(ev, env);
+        }
+    }
+
+    static final class DoubleArith extends Operation {
+        private final boolean add, sub, mult, div, intDiv;
+        private final Parallel.Site operands;
+
+        DoubleArith(CompoundArithExp site, Node[] children) {
+            super(site, children);
+            add = site instanceof AddExp;
+            sub = site instanceof SubExp;
+            mult = site instanceof MultExp;
+            div = site instanceof DivExp;
+            intDiv = site instanceof IntDivExp;
+            operands = new Parallel.Site(site.all());
+        }
+
+        public Value execute(Evaluator ev, Env env) {
+            return NumVal.valueOf(executeDouble(ev, env));
+        }
+
+        public double executeDouble(Evaluator ev, Env env) {
+            if (ev.parallel() != null && ev.parallel().accepts(operands)) {
+                boolean castFirst = sub || div || intDiv;
+                Object[] values = ev.parallel().evaluate(operands, i -> i == 0 && castFirst ? first(ev, env) : operand(children[i], ev, env));
+                return combine(values);
+            }
+            if (add || mult) {
+                double result = add ? 0 : 1;
+                for (Node child : children) {
+                    double v = operand(child, ev, env);
+                    result = add ? result + v : result * v;
+                }
+                return result;
+            }
+            if (sub || div || intDiv) {
+                double result = first(ev, env);
+                for (int i = 1; i < children.length; i++) {
+                    double v = operand(children[i], ev, env);
+                    if (sub) result = result - v;
+                    else if (div) result = result / v;
+                    else result = ((int) (result / v));
+                }
+                return result;
+            }
+            // power folds from the right: (^ a b c) is a^(b^c)
+            double result = 1;
+            for (int i = children.length - 1; i >= 0; i--) result = Math.pow(operand(children[i], ev, env), result);
+            return result;
+        }
+
+        // the same as executeDouble, on operands that have been evaluated already
+        private double combine(Object[] values) {
+            if (add || mult) {
+                double result = add ? 0 : 1;
+                for (Object v : values) result = add ? result + (double) v : result * (double) v;
+                return result;
+            }
+            if (sub || div || intDiv) {
+                double result = (double) values[0];
+                for (int i = 1; i < values.length; i++) {
+                    double v = (double) values[i];
+                    if (sub) result = result - v;
+                    else if (div) result = result / v;
+                    else result = ((int) (result / v));
+                }
+                return result;
+            }
+            double result = 1;
+            for (int i = values.length - 1; i >= 0; i--) result = Math.pow((double) values[i], result);
+            return result;
+        }
+
+        private double operand(Node child, Evaluator ev, Env env) {
+            try {
+                return child.executeDouble(ev, env);
+            } catch (UnexpectedResultException ex) {
+                throw new InterpreterException("Expression does not evaluate to numerical value " + format(site));
+            }
+        }
+
+        // the left operand of -, / and // has always been cast rather than checked
+        private double first(Evaluator ev, Env env) {
+            try {
+                return children[0].executeDouble(ev, env);
+            } catch (UnexpectedResultException ex) {
+                return ((NumVal) ex.result()).v();
+            }
+        }
+    }
+
+    /** A comparison that has not run yet; it picks its specialization from the first operands it sees. */
+    static final class UninitializedCompare extends Operation {
+        UninitializedCompare(CompoundBoolExp site, Node[] children) { super(site, children); }
+
+        public Value execute(Evaluator ev, Env env) {
+            Value[] vals = new Value[children.length];
+            boolean numeric = true;
+            for (int i = 0; i < children.length; i++) {
+                vals[i] = children[i].execute(ev, env);
+                if (i == 0 && !(vals[0] instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to Assignable value " + format(site));
+                numeric &= vals[i] instanceof NumVal;
+                // stop where the comparison is decided, later operands are not evaluated
+                if (i > 0 && !GenericCompare.test(site, vals[i - 1], vals[i])) {
+                    vals = null;
+                    break;
+                }
+            }
+            if (numeric) replace(new NumericCompare(site, children));
+            else replace(new GenericCompare(site, children));
+            return vals == null ? BoolVal.FalseVal : BoolVal.TrueVal;
+        }
+    }
+
+    static final class NumericCompare extends Operation {
+        private final boolean equal, gt;
+
+        NumericCompare(CompoundExp site, Node[] children) {
+            super(site, children);
+            equal = site instanceof EqualExp;
+            gt = site instanceof GtExp;
+        }
+
+        public Value execute(Evaluator ev, Env env) {
+            double l;
+            try {
+                l = children[0].executeDouble(ev, env);
+            } catch (UnexpectedResultException ex) {
+                return replace(new GenericCompare(site, children)).resume(ev, env, ex.result(), 1);
+            }
+            for (int i = 1; i < children.length; i++) {
+                double r;
+                try {
+                    r = children[i].executeDouble(ev, env);
+                } catch (UnexpectedResultException ex) {
+                    GenericCompare generic = replace(new GenericCompare(site, children));
+                    if (!GenericCompare.test(site, new NumVal(l), ex.result())) return BoolVal.FalseVal;
+                    return generic.resume(ev, env, ex.result(), i + 1);
+                }
+                if (!test(l, r)) return BoolVal.FalseVal;
+                l = r;
+            }
+            return BoolVal.TrueVal;
+        }
+
+        // the same tests as NumVal.eq and NumVal.comp, without boxing the difference
+        private boolean test(double l, double r) {
+            if (equal) return Math.abs(l - r) < 1e-9;
+            if (gt) return !(l - r <= 0);
+            return !(l - r >= 0);
+        }
+    }
+
+    static final class GenericCompare extends Operation {
+        GenericCompare(CompoundExp site, Node[] children) { super(site, children); }
+
+        public Value execute(Evaluator ev, Env env) {
+            return resume(ev, env, children[0].execute(ev, env), 1);
+        }
+
+        // continues a comparison whose operands before `from` have been compared already
+        Value resume(Evaluator ev, Env env, Value l, int from) {
+            if (from == 1 && !(l instanceof AssignableValue)) throw new InterpreterException("Expression does not evaluate to Assignable value " + format(site));
+            for (int i = from; i < children.length; i++) {
+                Value r = children[i].execute(ev, env);
+                if (!test(site, l, r)) return BoolVal.FalseVal;
+                l = r;
+            }
+            return BoolVal.TrueVal;
+        }
+
+        static boolean test(CompoundExp site, Value l, Value r) {
+            if (!(l instanceof AssignableValue a) || !(r instanceof AssignableValue b)) throw new InterpreterException("Expression does not evaluate to Assignable value " + format(site));
+            if (site instanceof EqualExp) return a.eq(b).v();
+            if (site instanceof GtExp) return !(a.comp(b) <= 0);
+            return !(a.comp(b) >= 0);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package arithlang;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+
+/**
+ * A static pass that rewrites a program into a cheaper one with the same results and errors:
+ *   - arithmetic whose operands are all numbers is folded into a number, and so is a comparison,
+ *     computed as Node would compute it at run time;
+ *   - a global defined by the program as a number or boolean is replaced by its value in the
+ *     definitions after it and in the program's expression;
+ *   - an IfExp whose condition is a number or boolean is replaced by the branch it takes;
+ *   - operands of AndExp and OrExp that are numbers or booleans are dropped when they cannot
+ *     decide the result, and end it when they do.
+ *
+ * Anything whose evaluation might fail, such as arithmetic on something other than a number,
+ * is left for the Evaluator to fail on as before, and everything is still evaluated in the
+ * same order. The messages of such errors print the rewritten expression.
+ *
+ * The pass depends on the text of the program alone: it makes the same program of the same
+ * text whatever the definitions a backend has, so the program made is kept on the one given,
+ * which the parse cache shares. Nodes that nothing changes under are reused, rather than
+ * copied, with what the Evaluator keeps on them. The Env parameter of the visitor is unused.
+ */
+@SuppressWarnings("rawtypes")
+public class Optimizer implements AST.Visitor<ASTNode> {
+
+    // One scope per LetExp or LambdaExp, whose names hide the globals replaced by values.
+    private static final class Scope {
+        private final Scope parent;
+        private final String[] names;
+
+        Scope(Scope parent, String[] names) {
+            this.parent = parent;
+            this.names = names;
+        }
+    }
+
+    private Scope scope = null;
+    // the values of the globals defined so far as numbers or booleans
+    private final Map<String, Exp> constants = new HashMap<>();
+
+    /** Returns the optimized program of p, making it on first use. */
+    public static Program optimize(Program p) {
+        Program optimized = p.optimized();
+        if (optimized == null) {
+            optimized = (Program) p.accept(new Optimizer(), null);
+            optimized.setOptimized(optimized);
+            p.setOptimized(optimized);
+            int before = size(p);
+            Metrics.optimized(before, optimized == p ? before : size(optimized));
+        }
+        return optimized;
+    }
+
+    /** The number of nodes of a program, its definitions and their expressions. */
+    static int size(Program p) {
+        int n = 1 + size(p.e());
+        for (DefDecl d : p.defs()) n += 1 + size(d.exp());
+        return n;
+    }
+
+    static int size(Exp e) {
+        int n = 1;
+        List<Exp> operands = Evaluator.operands(e);
+        if (operands != null) {
+            for (Exp operand : operands) n += size(operand);
+        } else if (e instanceof LetExp l) {
+            for (Exp exp : l.exps()) n += size(exp);
+            n += size(l.getBody());
+        } else if (e instanceof LambdaExp l) {
+            n += size(l.body());
+        } else if (e instanceof CallExp c) {
+            n += size(c.e());
+            for (Exp arg : c.args()) n += size(arg);
+        } else if (e instanceof IfExp i) {
+            n += size(i.cond()) + size(i.t_exp()) + size(i.f_exp());
+        }
+        return n;
+    }
+
+    private Exp optimize(Exp e, Env env) {
+        return (Exp) e.accept(this, env);
+    }
+
+    // the optimized expressions, or exps itself if none of them changed
+    private List<Exp> optimizeAll(List<Exp> exps, Env env) {
+        List<Exp> optimized = null;
+        for (int i = 0; i < exps.size(); i++) {
+            Exp e = optimize(exps.get(i), env);
+            if (optimized == null && e != exps.get(i)) {
+                optimized = new ArrayList<>(exps.size());
+                optimized.addAll(exps.subList(0, i));
+            }
+            if (optimized != null) optimized.add(e);
+        }
+        return optimized == null ? exps : optimized;
+    }
+
+    private static boolean isConstant(Exp e) {
+        return e instanceof NumExp || e instanceof BoolExp;
+    }
+
+    private static boolean isTrue(Exp constant) {
+        return constant instanceof NumExp n ? n.v().toBool().v() : ((BoolExp) constant).v().v();
+    }
+
+    private static BoolExp bool(boolean b) {
+        return new BoolExp(b ? "#t" : "#f");
+    }
+
+    private boolean isLocal(String name) {
+        for (Scope s = scope; s != null; s = s.parent) {
+            for (String n : s.names) if (n.equals(name)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Program visit(Program p, Env env) {
+        List<DefDecl> defs = new ArrayList<>(p.defs().size());
+        boolean changed = false;
+        for (DefDecl d : p.defs()) {
+            DefDecl optimized = visit(d, env);
+            changed |= optimized != d;
+            defs.add(optimized);
+        }
+        Exp e = optimize(p.e(), env);
+        return !changed && e == p.e() ? p : new Program(defs, e);
+    }
+
+    @Override
+    public DefDecl visit(DefDecl d, Env env) {
+        Exp e = optimize(d.exp(), env);
+        // a second definition of the name fails, and nothing after it runs
+        if (isConstant(e)) constants.putIfAbsent(d.name(), e);
+        return e == d.exp() ? d : new DefDecl(d.name(), e);
+    }
+
+    @Override
+    public Exp visit(UnitExp e, Env env) {
+        return e;
+    }
+
+    @Override
+    public Exp visit(NumExp e, Env env) {
+        return e;
+    }
+
+    // folds arithmetic on numbers as DoubleArith does, otherwise rebuilds it with make
+    private Exp arith(CompoundArithExp e, Env env, Function<List<Exp>, Exp> make) {
+        List<Exp> operands = optimizeAll(e.all(), env);
+        for (Exp operand : operands) {
+            if (!(operand instanceof NumExp)) return operands == e.all() ? e : make.apply(operands);
+        }
+        double[] v = new double[operands.size()];
+        for (int i = 0; i < v.length; i++) v[i] = ((NumExp) operands.get(i)).v().v();
+        double result;
+        if (e instanceof AddExp || e instanceof MultExp) {
+            boolean add = e instanceof AddExp;
+            result = add ? 0 : 1;
+            for (double d : v) result = add ? result + d : result * d;
+        } else if (e instanceof PowExp) {
+            result = 1;
+            for (int i = v.length - 1; i >= 0; i--) result = Math.pow(v[i], result);
+        } else {
+            result = v[0];
+            for (int i = 1; i < v.length; i++) {
+                if (e instanceof SubExp) result = result - v[i];
+                else if (e instanceof DivExp) result = result / v[i];
+                else result = ((int) (result / v[i]));
+            }
+        }
+        return new NumExp(result);
+    }
+
+    @Override
+    public Exp visit(AddExp e, Env env) {
+        return arith(e, env, AddExp::new);
+    }
+
+    @Override
+    public Exp visit(SubExp e, Env env) {
+        return arith(e, env, SubExp::new);
+    }
+
+    @Override
+    public Exp visit(MultExp e, Env env) {
+        return arith(e, env, MultExp::new);
+    }
+
+    @Override
+    public Exp visit(DivExp e, Env env) {
+        return arith(e, env, DivExp::new);
+    }
+
+    @Override
+    public Exp visit(IntDivExp e, Env env) {
+        return arith(e, env, IntDivExp::new);
+    }
+
+    @Override
+    public Exp visit(PowExp e, Env env) {
+        return arith(e, env, PowExp::new);
+    }
+
+    @Override
+    public Exp visit(VarExp e, Env env) {
+        Exp constant = constants.get(e.name());
+        return constant != null && !isLocal(e.name()) ? constant : e;
+    }
+
+    @Override
+    public Exp visit(LetExp e, Env env) {
+        // every name of the let hides a global, even in the bindings before it, which is safe
+        scope = new Scope(scope, e.names());
+        LinkedHashMap<String, Exp> decl = new LinkedHashMap<>();
+        boolean changed = false;
+        for (Map.Entry<String, Exp> binding : e.getDeclaration().entrySet()) {
+            Exp exp = optimize(binding.getValue(), env);
+            changed |= exp != binding.getValue();
+            decl.put(binding.getKey(), exp);
+        }
+        Exp body = optimize(e.getBody(), env);
+        scope = scope.parent;
+        return !changed && body == e.getBody() ? e : new LetExp(decl, body);
+    }
+
+    @Override
+    public Exp visit(LambdaExp e, Env env) {
+        scope = new Scope(scope, e.names());
+        Exp body = optimize(e.body(), env);
+        scope = scope.parent;
+        return body == e.body() ? e : new LambdaExp(new ArrayList<>(e.params()), body);
+    }
+
+    @Override
+    public Exp visit(CallExp e, Env env) {
+        Exp operator = optimize(e.e(), env);
+        List<Exp> args = optimizeAll(e.args(), env);
+        return operator == e.e() && args == e.args() ? e : new CallExp(operator, new ArrayList<>(args));
+    }
+
+    @Override
+    public Exp visit(IfExp e, Env env) {
+        Exp cond = optimize(e.cond(), env);
+        if (isConstant(cond)) return optimize(isTrue(cond) ? e.t_exp() : e.f_exp(), env);
+        Exp t = optimize(e.t_exp(), env);
+        Exp f = optimize(e.f_exp(), env);
+        return cond == e.cond() && t == e.t_exp() && f == e.f_exp() ? e : new IfExp(cond, t, f);
+    }
+
+    // folds a comparison of numbers as Node does, otherwise rebuilds it with make
+    private Exp compare(CompoundBoolExp e, Env env, Function<List<Exp>, Exp> make) {
+        List<Exp> operands = optimizeAll(e.all(), env);
+        for (Exp operand : operands) {
+            if (!(operand instanceof NumExp)) return operands == e.all() ? e : make.apply(operands);
+        }
+        for (int i = 1; i < operands.size(); i++) {
+            NumVal l = ((NumExp) operands.get(i - 1)).v(), r = ((NumExp) operands.get(i)).v();
+            if (!Node.GenericCompare.test(e, l, r)) return bool(false);
+        }
+        return bool(true);
+    }
+
+    @Override
+    public Exp visit(EqualExp e, Env env) {
+        return compare(e, env, EqualExp::new);
+    }
+
+    @Override
+    public Exp visit(GtExp e, Env env) {
+        return compare(e, env, GtExp::new);
+    }
+
+    @Override
+    public Exp visit(LtExp e, Env env) {
+        return compare(e, env, LtExp::new);
+    }
+
+    /**
+     * Drops the constant operands of an AndExp (decides = false) or OrExp (decides = true) that
+     * do not decide it, and the operands after one that does, which are never evaluated. The
+     * operands before a deciding one are kept, since they may fail.
+     */
+    private Exp connective(CompoundBoolExp e, Env env, boolean decides, Function<List<Exp>, Exp> make) {
+        List<Exp> operands = optimizeAll(e.all(), env);
+        List<Exp> kept = new ArrayList<>(operands.size());
+        for (Exp operand : operands) {
+            if (!isConstant(operand)) {
+                kept.add(operand);
+            } else if (isTrue(operand) == decides) {
+                if (kept.isEmpty()) return bool(decides);
+                kept.add(operand);
+                break;
+            }
+        }
+        if (kept.isEmpty()) return bool(!decides);
+        return kept.equals(e.all()) ? e : make.apply(kept);
+    }
+
+    @Override
+    public Exp visit(AndExp e, Env env) {
+        return connective(e, env, false, AndExp::new);
+    }
+
+    @Override
+    public Exp visit(OrExp e, Env env) {
+        return connective(e, env, true, OrExp::new);
+    }
+
+    @Override
+    public Exp visit(BoolExp e, Env env) {
+        return e;
+    }
+
+    @Override
+    public Exp visit(PairExp e, Env env) {
+        Exp first = optimize(e.first(), env);
+        Exp second = optimize(e.second(), env);
+        return first == e.first() && second == e.second() ? e : new PairExp(first, second);
+    }
+
+    @Override
+    public Exp visit(FirstExp e, Env env) {
+        Exp exp = optimize(e.exp(), env);
+        return exp == e.exp() ? e : new FirstExp(exp);
+    }
+
+    @Override
+    public Exp visit(SecondExp e, Env env) {
+        Exp exp = optimize(e.exp(), env);
+        return exp == e.exp() ? e : new SecondExp(exp);
+    }
+
+    @Override
+    public Exp visit(ListExp e, Env env) {
+        List<Exp> exps = optimizeAll(e.all(), env);
+        return exps == e.all() ? e : new ListExp(new ArrayList<>(exps));
+    }
+
+    @Override
+    public Exp visit(AppendExp a, Env env) {
+        Exp e = optimize(a.e(), env);
+        Exp list = optimize(a.list(), env);
+        return e == a.e() && list == a.list() ? a : new AppendExp(e, list);
+    }
+}
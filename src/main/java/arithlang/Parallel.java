@@ -0,0 +1,309 @@
+package arithlang;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+
+/**
+ * Evaluates the operands of an expression on a ForkJoinPool. The language has no mutation, so
+ * operands can be evaluated in any order; the results are combined in order and an error is
+ * reported for the leftmost operand that failed, as if they had run one after another.
+ *
+ * Forking costs a few microseconds, so the operands of a site are only forked when it is
+ * worth it:
+ *   - at least two operands may be expensive, i.e. contain something other than literals,
+ *     variables and the constant time operators listed in Evaluator.operands;
+ *   - evaluating the operands of the site one after another has taken THRESHOLD_NANOS or more
+ *     at least once. Until it has, the first and then one in SAMPLE evaluations are timed;
+ *   - the current worker does not already have SURPLUS or more tasks queued that no other
+ *     worker is stealing, which keeps a recursion such as (+ (fib (- n 1)) (fib (- n 2)))
+ *     from forking all the way down to its leaves.
+ * Otherwise the caller evaluates the operands one after another as usual.
+ *
+ * The speculations of the FUTURE parameter passing strategy run apart from the pool, on
+ * Speculator threads, see Speculation.
+ */
+final class Parallel {
+    static final long THRESHOLD_NANOS = 50_000;
+    static final int SAMPLE = 16;
+    static final int SURPLUS = 3;
+
+    private final ForkJoinPool pool;
+    // speculations queued or running, at most maxSpeculations, which is set by the pool's size
+    private final AtomicInteger speculations = new AtomicInteger();
+    private final int maxSpeculations;
+
+    Parallel(ForkJoinPool pool) {
+        this.pool = pool;
+        maxSpeculations = 4 * pool.getParallelism();
+    }
+
+    /** What is known about the operands of an expression. */
+    static final class Site {
+        private final boolean[] heavy;
+        private final int count;
+        // some sequential run took THRESHOLD_NANOS or more
+        private volatile boolean hot;
+        // updated without synchronization, a lost update only moves the next sample
+        private int evaluations;
+
+        Site(List<Exp> operands) {
+            heavy = new boolean[operands.size()];
+            int count = 0;
+            for (int i = 0; i < heavy.length; i++) {
+                heavy[i] = !bounded(operands.get(i));
+                if (heavy[i]) count++;
+            }
+            this.count = count;
+        }
+    }
+
+    // whether evaluating e takes time bounded by its size, i.e. it makes no calls
+    static boolean bounded(Exp e) {
+        if (e instanceof NumExp || e instanceof BoolExp || e instanceof VarExp || e instanceof UnitExp || e instanceof LambdaExp) return true;
+        List<Exp> operands = Evaluator.operands(e);
+        if (operands == null) return false;
+        for (Exp operand : operands) if (!bounded(operand)) return false;
+        return true;
+    }
+
+    /**
+     * Whether the operands of site are to be evaluated by evaluate this time, either to fork
+     * them or to time them. If not, the caller evaluates them itself.
+     */
+    boolean accepts(Site site) {
+        // a speculation runs on a thread of its own and may never finish, so it does not fork
+        if (site.count < 2 || Thread.currentThread() instanceof Speculator) return false;
+        if (!site.hot) return site.evaluations++ % SAMPLE == 0;
+        return ForkJoinTask.getSurplusQueuedTaskCount() < SURPLUS;
+    }
+
+    /** Returns the values eval gives for each of the operands of a site this accepts. */
+    Object[] evaluate(Site site, IntFunction<Object> eval) {
+        if (!site.hot) {
+            long start = System.nanoTime();
+            Object[] values = sequential(site, eval);
+            if (System.nanoTime() - start >= THRESHOLD_NANOS) site.hot = true;
+            return values;
+        }
+        Operands task = new Operands(site, eval, Operands.RUNNING.get());
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread w && w.getPool() == pool) task.invoke();
+        else pool.invoke(task);
+        return task.values();
+    }
+
+    private static Object[] sequential(Site site, IntFunction<Object> eval) {
+        Object[] values = new Object[site.heavy.length];
+        for (int i = 0; i < values.length; i++) values[i] = eval.apply(i);
+        return values;
+    }
+
+    // The number of Operands that have had an operand fail while others may still be running,
+    // so that poll only looks for the operand its thread runs while there may be one to stop.
+    private static final AtomicInteger stopping = new AtomicInteger();
+
+    // Forks every expensive operand but the last, then runs the operands from the left in this
+    // thread, taking the forked ones no other thread has started. Once an operand has failed,
+    // the operands after it would not have run one after another: those not started yet are
+    // skipped, those running stop at their next poll, and none of them is waited for, so one
+    // that never finishes does not hang the site.
+    private static final class Operands extends RecursiveAction {
+        // the operand the current thread is evaluating, if any
+        static final ThreadLocal<Run> RUNNING = new ThreadLocal<>();
+
+        private final Site site;
+        private final IntFunction<Object> eval;
+        private final Object[] values;
+        private final Throwable[] errors;
+        // the operand whose evaluation these operands are part of, or null
+        private final Run parent;
+        // the leftmost operand that has failed so far, or the number of operands
+        private final AtomicInteger failed;
+        private final AtomicInteger active = new AtomicInteger();
+        // counted in stopping, from a failure until no operand is running
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        Operands(Site site, IntFunction<Object> eval, Run parent) {
+            this.site = site;
+            this.eval = eval;
+            this.parent = parent;
+            values = new Object[site.heavy.length];
+            errors = new Throwable[site.heavy.length];
+            failed = new AtomicInteger(site.heavy.length);
+        }
+
+        @Override
+        protected void compute() {
+            int last = site.heavy.length - 1;
+            while (!site.heavy[last]) last--;
+
+            Operand[] forked = new Operand[values.length];
+            for (int i = 0; i < last; i++) {
+                if (site.heavy[i]) forked[i] = (Operand) new Operand(this, i).fork();
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (forked[i] == null || forked[i].claim()) run(i);
+            }
+            for (int i = 0; i < last; i++) {
+                if (forked[i] == null) continue;
+                if (i < failed.get()) forked[i].join();
+                else forked[i].cancel(false);
+            }
+        }
+
+        void run(int i) {
+            if (i > failed.get()) return;
+            active.incrementAndGet();
+            Run previous = RUNNING.get();
+            RUNNING.set(new Run(this, i));
+            try {
+                values[i] = eval.apply(i);
+            } catch (RuntimeException | StackOverflowError e) {
+                errors[i] = e;
+                failed.accumulateAndGet(i, Math::min);
+                if (stopped.compareAndSet(false, true)) stopping.incrementAndGet();
+            } finally {
+                RUNNING.set(previous);
+                if (active.decrementAndGet() == 0 && stopped.compareAndSet(true, false)) stopping.decrementAndGet();
+            }
+        }
+
+        Object[] values() {
+            for (Throwable e : errors) {
+                if (e instanceof RuntimeException r) throw r;
+                if (e instanceof Error r) throw r;
+            }
+            return values;
+        }
+    }
+
+    private record Run(Operands operands, int index) {
+        // whether an operand to the left of this one, or of one it is part of, has failed
+        boolean cancelled() {
+            return index > operands.failed.get() || operands.parent != null && operands.parent.cancelled();
+        }
+    }
+
+    private static final class Operand extends RecursiveAction {
+        private final Operands operands;
+        private final int index;
+
+        Operand(Operands operands, int index) {
+            this.operands = operands;
+            this.index = index;
+        }
+
+        // whether the calling thread is the first to take this operand
+        boolean claim() {
+            return compareAndSetForkJoinTaskTag((short) 0, (short) 1);
+        }
+
+        @Override
+        protected void compute() {
+            if (claim()) operands.run(index);
+        }
+    }
+
+    /**
+     * The threads running speculations. They are shared by every Parallel, and are daemons, so a
+     * speculation that never finishes does not keep the JVM running.
+     */
+    static final class Speculator extends Thread {
+        private static final AtomicLong count = new AtomicLong();
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), Speculator::new);
+
+        // the speculation being run, polled for its cancellation
+        private Speculation current;
+
+        private Speculator(Runnable task) {
+            super(task, "speculator-" + count.incrementAndGet());
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Starts forcing promise on a Speculator and adds the speculation to started, unless as many
+     * speculations are queued or running as the pool can keep busy. A speculation whose
+     * promise is then forced holds the promise's lock, so the thread forcing it waits for its
+     * value; one that has not started yet is simply overtaken. Speculations never run on the
+     * pool, so a join there cannot end up running one inline and waiting on it.
+     */
+    void speculate(PromiseVal promise, List<Speculation> started) {
+        if (speculations.incrementAndGet() > maxSpeculations) {
+            speculations.decrementAndGet();
+            return;
+        }
+        if (started.size() >= 32) started.removeIf(Speculation::isDone);
+        Speculation s = new Speculation(promise);
+        started.add(s);
+        Speculator.EXECUTOR.execute(s);
+    }
+
+    /**
+     * Stops the current speculation, or the current operand, if it has been cancelled. It is
+     * called at each step of the Evaluator's loop, each promise forced and each function called
+     * by a built-in function, so a cancelled speculation or operand stops whatever it is
+     * evaluating.
+     */
+    static void poll() {
+        if (Thread.currentThread() instanceof Speculator t && t.current != null && t.current.cancelled) {
+            throw new CancellationException();
+        }
+        if (stopping.get() > 0) {
+            Run run = Operands.RUNNING.get();
+            if (run != null && run.cancelled()) throw new CancellationException();
+        }
+    }
+
+    /**
+     * Forces a promise ahead of its first use. The evaluation polls for cancellation, which
+     * happens when the call the promise was an argument of returns: the promise may still be
+     * forced later, through a closure, but is likely never to be, and its argument may not
+     * even terminate. Cancelling only drops the work done so far; a promise whose speculation
+     * was cancelled or failed is evaluated as usual when it is forced, raising any error then.
+     */
+    final class Speculation implements Runnable {
+        private final PromiseVal promise;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+
+        Speculation(PromiseVal promise) {
+            this.promise = promise;
+        }
+
+        void cancel() {
+            if (!promise.isForced()) cancelled = true;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public void run() {
+            Speculator t = (Speculator) Thread.currentThread();
+            t.current = this;
+            try {
+                if (!cancelled && !promise.isForced()) promise.toAssignableValue();
+            } catch (RuntimeException | StackOverflowError e) {
+                // left unforced, the error is raised if and when the promise is used
+            } finally {
+                t.current = null;
+                done = true;
+                speculations.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package arithlang;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks that DescentParser and ANTLR give the same programs, run by the build on the example
+ * files. Each program is printed by Printer.Formatter and the texts compared. ANTLR is called
+ * directly rather than through a Reader, so the programs it gives are fresh and not taken from
+ * the parse cache. A file ANTLR accepts must be accepted by DescentParser too.
+ *
+ * Usage: ParserCheck path...
+ * where a path is a program file or a directory whose .scm and .fl files are checked.
+ */
+public class ParserCheck {
+    public static void main(String[] args) throws IOException {
+        List<String> failures = new ArrayList<>();
+        int checked = 0;
+        for (String arg : args) {
+            for (Path file : files(Path.of(arg))) {
+                String failure = check(Files.readString(file));
+                if (failure != null) failures.add(file + ": " + failure);
+                checked++;
+            }
+        }
+        failures.forEach(System.err::println);
+        if (!failures.isEmpty()) {
+            System.err.println("The parsers disagree on " + failures.size() + " of " + checked + " files");
+            System.exit(1);
+        }
+        System.out.println("The parsers agree on " + checked + " files");
+    }
+
+    /** Returns why the parsers disagree on text, or null if they agree. */
+    static String check(String text) {
+        AST.Program expected = Reader.parseWithAntlr(text);
+        AST.Program descent = DescentParser.parse(text);
+        if (expected == null) return descent == null ? null : "only the hand-written parser accepts it";
+        if (descent == null) return "only ANTLR accepts it";
+        String e = new Printer.Formatter().visit(expected, null);
+        String d = new Printer.Formatter().visit(descent, null);
+        return e.equals(d) ? null : "ANTLR gives " + e + " but the hand-written parser gives " + d;
+    }
+
+    private static List<Path> files(Path path) throws IOException {
+        if (!Files.isDirectory(path)) return List.of(path);
+        try (Stream<Path> all = Files.walk(path)) {
+            return all.filter(p -> p.toString().endsWith(".scm") || p.toString().endsWith(".fl")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package arithlang;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+import static arithlang.Env.*;
+
+/**
+ * A sampling profiler for the Evaluator. Evaluators made by evaluator keep a stack of the
+ * functions being run by each thread, updated only as calls start and return; a daemon thread
+ * reads the stacks every interval, and takes the type of node being visited from the top of the
+ * thread's Java stack, as the innermost AST node whose accept method is running. Each sample is
+ * charged one interval of time and the bytes the thread allocated since the previous one, as
+ * ThreadMXBean counts them, and the samples are kept as collapsed stacks:
+ * "program;define fib;fib;fib;AddExp".
+ *
+ * Calls of each function are counted exactly. Functions are named after the definition or let
+ * binding they were created by, built-ins after themselves, and other lambdas after their
+ * parameters. A tail call replaces its caller on the stack, since it does on the evaluator's,
+ * and arithmetic nested in arithmetic counts as its outermost node, which evaluates it without
+ * visits. Threads of a parallel Evaluator have stacks of their own, starting from the operand
+ * they were given.
+ *
+ * The profile is written as collapsed stacks, the input format of flame graph tools, and as a
+ * report of the functions and node types taking the most time.
+ */
+public final class Profiler implements AutoCloseable {
+    public static final long DEFAULT_INTERVAL_MICROS = 1000;
+
+    // the node types, by the AST classes the sampler finds on a thread's Java stack
+    private enum Kind {
+        Program, DefDecl, UnitExp, NumExp, AddExp, SubExp, MultExp, DivExp, IntDivExp, PowExp, VarExp, LetExp,
+        LambdaExp, CallExp, IfExp, EqualExp, GtExp, LtExp, AndExp, OrExp, BoolExp, PairExp, FirstExp, SecondExp,
+        ListExp, AppendExp
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+    private static final Map<String, Kind> KINDS_BY_CLASS = new HashMap<>();
+    // how far down a thread's Java stack the sampler looks for the node being visited
+    private static final int NODE_FRAMES = 16;
+
+    static {
+        for (Kind k : KINDS) KINDS_BY_CLASS.put(AST.class.getName() + "$" + k.name(), k);
+    }
+
+    private final long intervalMicros;
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final ThreadLocal<Stack> stack = ThreadLocal.withInitial(this::register);
+    private final List<Stack> stacks = new CopyOnWriteArrayList<>();
+    // the frames of functions by their body, which identifies a lambda, and of definitions and
+    // programs; by identity, since equal nodes of different programs are different functions
+    private final Map<ASTNode, Frame> frames = Collections.synchronizedMap(new IdentityHashMap<>());
+    // samples by collapsed stack, guarded by itself
+    private final Map<String, Sample> samples = new HashMap<>();
+    private final Thread sampler;
+    private volatile boolean closed;
+
+    public Profiler() {
+        this(DEFAULT_INTERVAL_MICROS);
+    }
+
+    public Profiler(long intervalMicros) {
+        this.intervalMicros = intervalMicros;
+        if (threads.isThreadAllocatedMemorySupported()) threads.setThreadAllocatedMemoryEnabled(true);
+        sampler = new Thread(this::sample, "profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /** An Evaluator whose evaluation, and that of its forks, this profiles. */
+    public Evaluator evaluator(Evaluator.Strategy strategy, ForkJoinPool pool) {
+        return new Profiled(strategy, pool);
+    }
+
+    // a function, or the definition or program at the bottom of a stack, whose calls are
+    // counted here or, for functions, by Called
+    private static final class Frame {
+        final String name;
+        final LongAdder calls = new LongAdder();
+
+        Frame(String name) {
+            this.name = name;
+        }
+    }
+
+    // a function's frame and the calls of it made by one thread, counted without contention
+    private static final class Called {
+        final Exp body;
+        final Frame frame;
+        long calls;
+
+        Called(Exp body, Frame frame) {
+            this.body = body;
+            this.frame = frame;
+        }
+    }
+
+    private static final class Sample {
+        long count;
+        long bytes;
+    }
+
+    /**
+     * The stack of one thread. It is written by that thread alone, with plain writes: the
+     * sampler may read it a little out of date, which only moves a sample to a nearby stack.
+     */
+    private static final class Stack {
+        final Thread thread;
+        // the functions this thread has called by their body, and the last of them, and all
+        // of them again for the report to read from other threads
+        final Map<Exp, Called> called = new IdentityHashMap<>();
+        Called last;
+        final List<Called> all = new CopyOnWriteArrayList<>();
+        Frame[] frames = new Frame[64];
+        int depth;
+        // the thread's allocated bytes at the previous sample, used by the sampler alone
+        long allocated;
+
+        Stack(Thread thread) {
+            this.thread = thread;
+        }
+
+        void push(Frame frame) {
+            if (depth == frames.length) frames = Arrays.copyOf(frames, 2 * depth);
+            frames[depth++] = frame;
+        }
+    }
+
+    private Stack register() {
+        Stack s = new Stack(Thread.currentThread());
+        s.allocated = threads.getThreadAllocatedBytes(s.thread.getId());
+        stacks.add(s);
+        return s;
+    }
+
+    private Called called(Stack s, FuncVal func) {
+        Exp body = func.body();
+        Called c = s.last;
+        if (c != null && c.body == body) return c;
+        c = s.called.get(body);
+        if (c == null) {
+            String name = body instanceof Builtins.Builtin b ? b.name() : "lambda (" + String.join(" ", func.params()) + ")";
+            c = new Called(body, frames.computeIfAbsent(body, k -> new Frame(name)));
+            s.called.put(body, c);
+            s.all.add(c);
+        }
+        return s.last = c;
+    }
+
+    // names the functions defined by the bindings of a definition or let
+    private void name(String name, Exp e) {
+        if (e instanceof LambdaExp l) frames.computeIfAbsent(l.body(), b -> new Frame(name));
+    }
+
+    // names the functions defined by the lets in e, once per program rather than per visit
+    private void nameLets(Exp e) {
+        List<Exp> operands = Evaluator.operands(e);
+        if (operands != null) {
+            for (Exp operand : operands) nameLets(operand);
+        } else if (e instanceof LetExp l) {
+            for (int i = 0; i < l.exps().length; i++) {
+                name(l.names()[i], l.exps()[i]);
+                nameLets(l.exps()[i]);
+            }
+            nameLets(l.getBody());
+        } else if (e instanceof LambdaExp l) {
+            nameLets(l.body());
+        } else if (e instanceof CallExp c) {
+            nameLets(c.e());
+            for (Exp arg : c.args()) nameLets(arg);
+        } else if (e instanceof IfExp i) {
+            nameLets(i.cond());
+            nameLets(i.t_exp());
+            nameLets(i.f_exp());
+        }
+    }
+
+    // the innermost node being visited by thread, or null if none is found near the top
+    private Kind node(Thread thread) {
+        ThreadInfo info = threads.getThreadInfo(thread.getId(), NODE_FRAMES);
+        if (info == null) return null;
+        for (StackTraceElement frame : info.getStackTrace()) {
+            Kind kind = KINDS_BY_CLASS.get(frame.getClassName());
+            if (kind != null && frame.getMethodName().equals("accept")) return kind;
+        }
+        return null;
+    }
+
+    private void sample() {
+        long intervalNanos = intervalMicros * 1000;
+        long next = System.nanoTime();
+        StringBuilder key = new StringBuilder();
+        while (!closed) {
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else {
+                // fell behind, skip the samples missed rather than taking them all at once
+                next = System.nanoTime();
+            }
+            for (Stack s : stacks) {
+                long allocated = threads.getThreadAllocatedBytes(s.thread.getId());
+                if (!s.thread.isAlive()) {
+                    stacks.remove(s);
+                    continue;
+                }
+                long bytes = allocated - s.allocated;
+                s.allocated = allocated;
+                Frame[] frames = s.frames;
+                int depth = Math.min(s.depth, frames.length);
+                if (depth == 0) continue;
+                Kind node = node(s.thread);
+
+                key.setLength(0);
+                for (int i = 0; i < depth; i++) {
+                    // a racy read may find a slot not written yet
+                    Frame f = frames[i];
+                    if (f != null) key.append(f.name).append(';');
+                }
+                if (node != null) key.append(node.name());
+                else if (key.length() > 0) key.setLength(key.length() - 1);
+                else continue;
+                synchronized (samples) {
+                    Sample sample = samples.computeIfAbsent(key.toString(), k -> new Sample());
+                    sample.count++;
+                    sample.bytes += Math.max(bytes, 0);
+                }
+            }
+        }
+    }
+
+    /** Stops sampling. The profile can still be written. */
+    @Override
+    public void close() {
+        closed = true;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the samples as collapsed stacks, one per line followed by its number of samples,
+     * to file, and followed by the bytes allocated instead to file with ".alloc" appended.
+     */
+    public void writeCollapsed(Path file) throws IOException {
+        Map<String, Sample> copy = samples();
+        if (file.toAbsolutePath().getParent() != null) Files.createDirectories(file.toAbsolutePath().getParent());
+        try (PrintWriter time = new PrintWriter(Files.newBufferedWriter(file));
+             PrintWriter alloc = new PrintWriter(Files.newBufferedWriter(Path.of(file + ".alloc")))) {
+            for (Map.Entry<String, Sample> e : copy.entrySet()) {
+                time.println(e.getKey() + " " + e.getValue().count);
+                if (e.getValue().bytes > 0) alloc.println(e.getKey() + " " + e.getValue().bytes);
+            }
+        }
+    }
+
+    private Map<String, Sample> samples() {
+        synchronized (samples) {
+            Map<String, Sample> copy = new TreeMap<>();
+            samples.forEach((k, v) -> {
+                Sample s = new Sample();
+                s.count = v.count;
+                s.bytes = v.bytes;
+                copy.put(k, s);
+            });
+            return copy;
+        }
+    }
+
+    /**
+     * Returns a report of the top functions and node types by self time: the calls counted or
+     * the samples taken in the node, and the time and bytes allocated while each was at the top of a stack (self)
+     * and anywhere on it (total), estimated from the samples.
+     */
+    public String report(int top) {
+        Map<String, Sample> copy = samples();
+        // name -> {self samples, total samples, self bytes, total bytes}
+        Map<String, long[]> functions = new HashMap<>();
+        Map<String, long[]> nodes = new HashMap<>();
+        long count = 0;
+        for (Map.Entry<String, Sample> e : copy.entrySet()) {
+            Sample s = e.getValue();
+            count += s.count;
+            String[] stack = e.getKey().split(";");
+            int last = stack.length - 1;
+            boolean leafNode = isKind(stack[last]);
+            if (leafNode) charge(nodes, stack[last], s, true, true);
+            Set<String> seen = new HashSet<>();
+            for (int i = leafNode ? last - 1 : last; i >= 0; i--) {
+                boolean self = i == (leafNode ? last - 1 : last);
+                charge(functions, stack[i], s, self, seen.add(stack[i]));
+            }
+        }
+
+        Map<String, Long> calls = new HashMap<>();
+        synchronized (frames) {
+            for (Frame f : frames.values()) calls.merge(f.name, f.calls.sum(), Long::sum);
+        }
+        for (Stack s : stacks) {
+            for (Called c : s.all) calls.merge(c.frame.name, c.calls, Long::sum);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        double ms = intervalMicros / 1000.0;
+        sb.append(String.format("%d samples every %d us%n", count, intervalMicros));
+        sb.append(String.format("%12s %10s %10s %10s %10s  %s%n", "calls", "self ms", "total ms", "self KB", "total KB", "function"));
+        functions.entrySet().stream().sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0])).limit(top).forEach(e -> {
+            long[] v = e.getValue();
+            sb.append(String.format("%12d %10.1f %10.1f %10d %10d  %s%n", calls.getOrDefault(e.getKey(), 0L), v[0] * ms, v[1] * ms, v[2] >> 10, v[3] >> 10, e.getKey()));
+        });
+        sb.append(String.format("%12s %10s %10s  %s%n", "samples", "self ms", "self KB", "node"));
+        for (Kind k : KINDS) {
+            long[] v = nodes.get(k.name());
+            if (v != null) sb.append(String.format("%12d %10.1f %10d  %s%n", v[0], v[0] * ms, v[2] >> 10, k.name()));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isKind(String name) {
+        for (Kind k : KINDS) if (k.name().equals(name)) return true;
+        return false;
+    }
+
+    private static void charge(Map<String, long[]> to, String name, Sample s, boolean self, boolean first) {
+        long[] v = to.computeIfAbsent(name, k -> new long[4]);
+        if (self) {
+            v[0] += s.count;
+            v[2] += s.bytes;
+        }
+        // a recursive function is charged once per sample
+        if (first) {
+            v[1] += s.count;
+            v[3] += s.bytes;
+        }
+    }
+
+    /** An Evaluator that keeps the stacks of the threads running it up to date. */
+    private final class Profiled extends Evaluator {
+        // the stack of the thread that last used this evaluator, which is nearly always the
+        // thread using it now, saving a ThreadLocal lookup per visit
+        private Stack last = stack.get();
+
+        Profiled(Strategy strategy, ForkJoinPool pool) {
+            super(strategy, pool);
+        }
+
+        Profiled(Profiled origin) {
+            super(origin);
+        }
+
+        @Override
+        public Evaluator fork() {
+            return new Profiled(this);
+        }
+
+        private Stack stack() {
+            Stack s = last;
+            if (s.thread != Thread.currentThread()) last = s = stack.get();
+            return s;
+        }
+
+        @Override
+        void enter(FuncVal func, boolean tail) {
+            Stack s = stack();
+            Called c = called(s, func);
+            c.calls++;
+            if (tail) s.frames[s.depth - 1] = c.frame;
+            else s.push(c.frame);
+        }
+
+        @Override
+        void leave() {
+            stack().depth--;
+        }
+
+        // runs visit under a frame of its own
+        private Value framed(Frame frame, Supplier<Value> visit) {
+            Stack s = stack();
+            frame.calls.increment();
+            s.push(frame);
+            try {
+                return visit.get();
+            } finally {
+                s.depth--;
+            }
+        }
+
+        @Override
+        public Value visit(Program p, Env env) {
+            Frame frame = frames.get(p);
+            if (frame == null) {
+                for (DefDecl d : p.defs()) nameLets(d.exp());
+                nameLets(p.e());
+                frame = frames.computeIfAbsent(p, k -> new Frame("program"));
+            }
+            return framed(frame, () -> super.visit(p, env));
+        }
+
+        @Override
+        public Value visit(DefDecl e, Env env) {
+            name(e.name(), e.exp());
+            Frame frame = frames.computeIfAbsent(e, k -> new Frame("define " + e.name()));
+            return framed(frame, () -> super.visit(e, env));
+        }
+    }
+}
@@ -3,21 +3,61 @@ package arithlang;
 import arithlang.AST.Program;
 import arithlang.parser.ArithLangLexer;
 import arithlang.parser.ArithLangParser;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Reader implements AutoCloseable {
 
+    private static final ParseCache cache = new ParseCache(1024, 16 << 20);
+    private static final ThreadLocal<Parsers> parsers = ThreadLocal.withInitial(Parsers::new);
+
     private final BufferedReader br;
+    private final Parser parser;
+
+    /**
+     * The parser used for programs: DESCENT, the hand-written DescentParser, which hands what it
+     * cannot parse cleanly to ANTLR so errors are reported as before; or ANTLR alone.
+     */
+    public enum Parser { DESCENT, ANTLR }
 
     public Reader() {
+        this(Parser.DESCENT);
+    }
+
+    public Reader(Parser parser) {
         br = new BufferedReader(new InputStreamReader(System.in));
+        this.parser = parser;
     }
 
     @Override
@@ -30,46 +70,498 @@ public class Reader implements AutoCloseable {
         if (programText == null) {
             return null;
         } else {
-            return parse(programText);
+            return run(programText);
         }
     }
 
-    private String readNextProgram() throws IOException {
+    // a program is a line, or several when forms opened on the first are closed on later ones
+    String readNextProgram() throws IOException {
         String programText = br.readLine();
-        if (programText == null) {
-            return null;
-        } else {
-            return runFile(programText);
+        if (programText == null || programText.startsWith("run ")) {
+            return programText;
+        }
+        Forms forms = new Forms();
+        forms.scan(programText + "\n");
+        StringBuilder sb = null;
+        String line;
+        while (forms.open() && (line = br.readLine()) != null) {
+            if (sb == null) sb = new StringBuilder(programText);
+            sb.append('\n').append(line);
+            forms.scan(line + "\n");
         }
+        return sb == null ? programText : sb.toString();
+    }
+
+    /**
+     * Returns the top-level forms read from in, each parsed as a program of its own as soon as
+     * the characters ending it have been read, so a caller can run the definitions at the start
+     * of a large input while the rest is still being read. The input is decoded as UTF-8 a
+     * block at a time, and only the text of the form being read is kept. Reading fails with an
+     * UncheckedIOException.
+     */
+    public Iterator<Program> programs(ReadableByteChannel in) {
+        return new Iterator<>() {
+            private final ByteBuffer bytes = ByteBuffer.allocate(BLOCK);
+            private final CharBuffer chars = CharBuffer.allocate(BLOCK).flip();
+            private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            private final Forms forms = new Forms();
+            private final StringBuilder form = new StringBuilder();
+            private boolean eof;
+            private String next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = nextForm();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Program next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String text = next;
+                next = null;
+                // not cached: the forms of a file are seldom read again, and would evict programs that are
+                long start = System.nanoTime();
+                Program program = parser == Parser.DESCENT ? DescentParser.parse(text) : null;
+                if (program == null) program = parsers.get().parse(text);
+                Metrics.PARSE.record(System.nanoTime() - start);
+                return program;
+            }
+
+            private String nextForm() throws IOException {
+                while (true) {
+                    while (chars.hasRemaining()) {
+                        char c = chars.get();
+                        form.append(c);
+                        if (forms.next(c)) return take();
+                    }
+                    if (eof) return forms.open() ? take() : null;
+                    chars.clear();
+                    eof = in.read(bytes) < 0;
+                    bytes.flip();
+                    decoder.decode(bytes, chars, eof);
+                    if (eof) decoder.flush(chars);
+                    bytes.compact();
+                    chars.flip();
+                }
+            }
+
+            private String take() {
+                String text = form.toString();
+                form.setLength(0);
+                forms.reset();
+                return text;
+            }
+        };
     }
 
+    private static final int BLOCK = 1 << 16;
+
+    /**
+     * Finds where top-level forms end in text scanned a character at a time: at the parenthesis
+     * closing a list, or at the whitespace after an atom. Parentheses inside comments, which
+     * run from slash star to star slash or from # to the end of the line unless it begins #t
+     * or #f, are not counted.
+     * Anything else is left to the parser, including mismatched parentheses.
+     */
+    static final class Forms {
+        private int depth;
+        private boolean atom, slash, hash, literal, blockComment, star, lineComment;
+
+        /** Scans c, returning whether it ends a top-level form. */
+        boolean next(char c) {
+            if (lineComment) {
+                if (c == '\n') lineComment = false;
+                return false;
+            }
+            if (blockComment) {
+                if (c == '/' && star) blockComment = false;
+                star = c == '*';
+                return false;
+            }
+            if (slash) {
+                slash = false;
+                if (c == '*') {
+                    blockComment = true;
+                    star = false;
+                    return false;
+                }
+                if (depth == 0) atom = true;
+            }
+            if (c == '/') {
+                slash = true;
+                return false;
+            }
+            if (literal) {
+                literal = false;
+                // #t and #f are only booleans at the end of a line, otherwise the comment is longer,
+                // as in the grammar and DescentParser
+                if (c != '\n' && c != '\r') {
+                    lineComment = true;
+                    return false;
+                }
+                if (depth == 0) atom = true;
+            }
+            if (hash) {
+                hash = false;
+                literal = c == 't' || c == 'f';
+                if (!literal) lineComment = c != '\n';
+                return false;
+            }
+            if (c == '#') {
+                hash = true;
+                return false;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth <= 0) {
+                    depth = 0;
+                    atom = false;
+                    return true;
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (depth == 0 && atom) {
+                    atom = false;
+                    return true;
+                }
+            } else if (depth == 0) {
+                atom = true;
+            }
+            return false;
+        }
+
+        void scan(CharSequence text) {
+            for (int i = 0; i < text.length(); i++) next(text.charAt(i));
+        }
+
+        /** Whether a form or a comment has been started and not yet ended. */
+        boolean open() {
+            return depth > 0 || atom || slash || literal || blockComment;
+        }
+
+        void reset() {
+            depth = 0;
+            atom = slash = hash = literal = blockComment = star = lineComment = false;
+        }
+    }
+
+    /** The cache of parsed programs shared by all readers. */
+    public static ParseCache cache() {
+        return cache;
+    }
+
+    /**
+     * Parses programText, or returns the program parsed from the same text before. Programs are
+     * shared, so everything a backend stores on the AST must depend on the text alone.
+     */
     Program parse(String programText) {
-        Lexer l = new ArithLangLexer(CharStreams.fromString(programText));
-        ArithLangParser p = new ArithLangParser(new org.antlr.v4.runtime.CommonTokenStream(l));
-        return p.program().ast;
+        Program program = cache.get(programText);
+        if (program != null) return program;
+        if (parser == Parser.DESCENT && (program = DescentParser.parse(programText)) != null) {
+            return cache.put(programText, program);
+        }
+        Parsers ps = parsers.get();
+        program = ps.parse(programText);
+        if (ps.errors.count == 0) program = cache.put(programText, program);
+        return program;
+    }
+
+    /** Parses programText with ANTLR, bypassing the cache, or returns null if it has syntax errors. */
+    static Program parseWithAntlr(String programText) {
+        Parsers ps = parsers.get();
+        Program program = ps.parse(programText);
+        return ps.errors.count == 0 ? program : null;
     }
 
-    String runFile(String programText) throws IOException {
-        if (programText.startsWith("run ")) {
-            programText = readFile(getProgramDirectory() + programText.substring(4));
+    /** Parses programText, or the file it runs if it is a "run" command. */
+    Program run(String programText) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return programText.startsWith("run ") ? load(programFile(programText)) : parse(programText);
+        } finally {
+            Metrics.PARSE.record(System.nanoTime() - start);
         }
-        return programText;
+    }
+
+    /** The file run by a "run" command. */
+    Path programFile(String runCommand) {
+        return Path.of(getProgramDirectory() + runCommand.substring(4));
     }
 
     private String getProgramDirectory() {
         return "src/main/java/arithlang/examples/";
     }
 
-    private String readFile(String fileName) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
-            while (line != null) {
-                sb.append(line);
-                sb.append(System.lineSeparator());
-                line = br.readLine();
+    /**
+     * Parses a file without first reading it into a String. The file is mapped, and if it is
+     * ASCII the parser reads the mapped bytes directly; otherwise it is decoded once, by ANTLR
+     * into code points or for DescentParser into chars. Files are not cached, since they have no
+     * text to key the cache with.
+     */
+    public Program load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new InterpreterException("Cannot run " + file + ", it is larger than 2GB");
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MappedCharStream ascii = MappedCharStream.ascii(bytes) ? new MappedCharStream(bytes, file.toString()) : null;
+            if (parser == Parser.DESCENT) {
+                Program program = DescentParser.parse(ascii != null ? ascii : StandardCharsets.UTF_8.decode(bytes));
+                if (program != null) return program;
+            }
+            return parsers.get().parse(ascii != null ? ascii : CharStreams.fromPath(file));
+        }
+    }
+
+    /** The characters of an ASCII file, read from its mapped bytes. */
+    static final class MappedCharStream implements CharStream, CharSequence {
+        private final ByteBuffer bytes;
+        private final int size;
+        private final String name;
+        private int index;
+
+        MappedCharStream(ByteBuffer bytes, String name) {
+            this.bytes = bytes;
+            this.size = bytes.limit();
+            this.name = name;
+        }
+
+        // whether every byte is below 128, checked eight at a time
+        static boolean ascii(ByteBuffer bytes) {
+            int i = 0, n = bytes.limit();
+            for (; i + Long.BYTES <= n; i += Long.BYTES) {
+                if ((bytes.getLong(i) & 0x8080808080808080L) != 0) return false;
+            }
+            for (; i < n; i++) {
+                if (bytes.get(i) < 0) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void consume() {
+            if (index >= size) throw new IllegalStateException("cannot consume EOF");
+            index++;
+        }
+
+        @Override
+        public int LA(int i) {
+            int at = i > 0 ? index + i - 1 : index + i;
+            return i == 0 || at < 0 || at >= size ? IntStream.EOF : bytes.get(at);
+        }
+
+        @Override
+        public int mark() {
+            return -1;
+        }
+
+        @Override
+        public void release(int marker) {
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+        @Override
+        public void seek(int index) {
+            this.index = Math.min(index, size);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String getSourceName() {
+            return name;
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            int start = interval.a, stop = Math.min(interval.b, size - 1);
+            if (start >= size || stop < start) return "";
+            byte[] text = new byte[stop - start + 1];
+            bytes.get(start, text);
+            return new String(text, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public int length() {
+            return size;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes.get(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return getText(Interval.of(start, end - 1));
+        }
+
+        @Override
+        public String toString() {
+            return getText(Interval.of(0, size - 1));
+        }
+    }
+
+    /**
+     * A lexer and parser reused for every parse on one thread. The generated recognizers already
+     * share their prediction DFA between instances; reusing them saves building the rest.
+     *
+     * Programs are first parsed with SLL prediction, which is enough for most input and does not
+     * need full context. Only if that fails is the program parsed again with full LL prediction
+     * and the usual error reporting and recovery.
+     */
+    private static final class Parsers {
+        final ArithLangLexer lexer = new ArithLangLexer(CharStreams.fromString(""));
+        final ArithLangParser parser = new ArithLangParser(new CommonTokenStream(lexer));
+        final ErrorCounter errors = new ErrorCounter();
+
+        Parsers() {
+            lexer.addErrorListener(errors);
+            parser.addErrorListener(errors);
+        }
+
+        Program parse(String programText) {
+            return parse(CharStreams.fromString(programText));
+        }
+
+        Program parse(CharStream chars) {
+            errors.count = 0;
+            lexer.setInputStream(chars);
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            parser.setTokenStream(tokens);
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            try {
+                return parser.program().ast;
+            } catch (ParseCancellationException e) {
+                tokens.seek(0);
+                parser.reset();
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                return parser.program().ast;
             }
-            return sb.toString();
+        }
+    }
+
+    /** Counts syntax errors, so programs that did not parse cleanly are not cached. */
+    private static final class ErrorCounter extends BaseErrorListener {
+        int count;
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+            count++;
+        }
+    }
+
+    /**
+     * A bounded cache of parsed programs keyed by their text. Lookups hash the text, which a
+     * String computes once, and compare it with the cached text on a match; they take no lock, so
+     * threads reading cached programs do not wait on each other. When the cache holds more than
+     * maxEntries programs or maxChars characters of text, the least recently used programs are
+     * evicted, down to 7/8 of the limits so that the cost of finding them is shared by many puts.
+     * Recency is approximate: a program is stamped with the number of puts made when it was last
+     * used, and a hit writes the stamp only when it has changed. Parsing happens outside the lock
+     * puts take, so two threads may parse the same new text at once; the first to finish wins and
+     * both get its program.
+     */
+    public static final class ParseCache {
+        private final int maxEntries;
+        private final long maxChars;
+        private final ConcurrentHashMap<String, Entry> programs = new ConcurrentHashMap<>();
+        // the number of puts, which stamps the entries used since
+        private volatile long clock;
+        // guarded by this
+        private long chars;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        private static final class Entry {
+            final Program program;
+            volatile long used;
+
+            Entry(Program program, long used) {
+                this.program = program;
+                this.used = used;
+            }
+        }
+
+        public ParseCache(int maxEntries, long maxChars) {
+            this.maxEntries = maxEntries;
+            this.maxChars = maxChars;
+        }
+
+        /** Returns the program parsed from text, or null if it is not cached. */
+        public Program get(String text) {
+            Entry entry = programs.get(text);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            long now = clock;
+            if (entry.used != now) entry.used = now;
+            return entry.program;
+        }
+
+        /** Caches program as parsed from text, returning the program cached for text by now. */
+        public Program put(String text, Program program) {
+            if (text.length() > maxChars) return program;
+            synchronized (this) {
+                Entry cached = programs.putIfAbsent(text, new Entry(program, ++clock));
+                if (cached != null) return cached.program;
+                chars += text.length();
+                if (programs.size() > maxEntries || chars > maxChars) evict();
+            }
+            return program;
+        }
+
+        private record Stamp(String text, long used) {}
+
+        // called holding the lock
+        private void evict() {
+            // the stamps are copied first, as hits may change them during the sort
+            List<Stamp> stamps = new ArrayList<>(programs.size());
+            programs.forEach((text, entry) -> stamps.add(new Stamp(text, entry.used)));
+            stamps.sort(Comparator.comparingLong(Stamp::used));
+            int entries = stamps.size();
+            for (Stamp eldest : stamps) {
+                if (entries <= maxEntries - maxEntries / 8 && chars <= maxChars - maxChars / 8) break;
+                programs.remove(eldest.text());
+                chars -= eldest.text().length();
+                entries--;
+                evictions.increment();
+            }
+        }
+
+        public synchronized void clear() {
+            programs.clear();
+            chars = 0;
+        }
+
+        public int size() { return programs.size(); }
+
+        public long hits() { return hits.sum(); }
+
+        public long misses() { return misses.sum(); }
+
+        public long evictions() { return evictions.sum(); }
+
+        @Override
+        public String toString() {
+            return "parse cache: " + size() + " programs, " + hits() + " hits, " + misses() + " misses, " + evictions() + " evictions";
         }
     }
 }
@@ -0,0 +1,260 @@
+package arithlang;
+
+import java.util.*;
+
+import static arithlang.AST.*;
+
+/**
+ * A static pass that resolves every VarExp of a program to its lexical address. Names bound by
+ * an enclosing LetExp or LambdaExp get a (depth, index) pair into the chain of Env.FrameEnv
+ * built by the Evaluator. Every other name is a global, addressed by its slot in Env.GlobalEnv
+ * if some table has defined it and by name until then, see VarExp.slot; resolving takes no
+ * slots, so names that are never defined, such as typos, cost nothing. A name keeps its slot
+ * for good, so the address of every name depends on the program's text alone and a resolved
+ * program can be shared by evaluators with different definitions, see Reader.parse.
+ *
+ * It also works out what each LambdaExp captures: the names its body uses from the frames
+ * around it. A closure keeps their values in a frame of its own, which its calls extend, rather
+ * than the chain it was created in, so the body addresses them in that frame.
+ *
+ * The Env parameter of the visitor is unused, the compile time scopes are kept in this class.
+ */
+@SuppressWarnings("rawtypes")
+public class Resolver implements AST.Visitor<Void> {
+
+    // One scope per frame the Evaluator creates. Only the first `visible` names can be seen,
+    // which gives LetExp its sequential binding semantics.
+    private static final class Scope {
+        private final Scope parent;
+        private final String[] names;
+        private int visible;
+        // for the frame of captured values of a LambdaExp, their outer addresses, null otherwise;
+        // its names grow as the body is resolved, and its parent is the scope of the creation
+        private List<String> captured;
+        private List<int[]> addresses;
+
+        Scope(Scope parent, String[] names, int visible) {
+            this.parent = parent;
+            this.names = names;
+            this.visible = visible;
+        }
+    }
+
+    private Scope scope = null;
+
+    public static Program resolve(Program p) {
+        if (!p.resolved()) {
+            p.accept(new Resolver(), null);
+            p.markResolved();
+        }
+        return p;
+    }
+
+    private void resolveAll(List<Exp> exps, Env env) {
+        for (Exp exp : exps) exp.accept(this, env);
+    }
+
+    @Override
+    public Void visit(Program p, Env env) {
+        for (DefDecl d : p.defs()) d.accept(this, env);
+        p.e().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(DefDecl d, Env env) {
+        d.exp().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(UnitExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(NumExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(AddExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(SubExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(MultExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(DivExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(IntDivExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(PowExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    // the (depth, index) address of name seen from scope, or null if it is a global
+    private static int[] lookup(Scope scope, String name) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent, depth++) {
+            if (s.captured != null) {
+                int i = s.captured.indexOf(name);
+                if (i < 0) {
+                    int[] outer = lookup(s.parent, name);
+                    if (outer == null) return null;
+                    i = s.captured.size();
+                    s.captured.add(name);
+                    s.addresses.add(outer);
+                }
+                return new int[] {depth, i};
+            }
+            // the last of duplicated names shadows the others, as it did with ExtendEnv chains
+            for (int i = s.visible - 1; i >= 0; i--) {
+                if (s.names[i].equals(name)) return new int[] {depth, i};
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(VarExp e, Env env) {
+        int[] address = lookup(scope, e.name());
+        if (address != null) e.setAddress(address[0], address[1]);
+        else e.setAddress(VarExp.GLOBAL, Env.GlobalEnv.slotOf(e.name()));
+        return null;
+    }
+
+    @Override
+    public Void visit(LetExp e, Env env) {
+        Scope let = new Scope(scope, e.names(), 0);
+        scope = let;
+        for (Exp exp : e.exps()) {
+            exp.accept(this, env);
+            let.visible++;
+        }
+        e.getBody().accept(this, env);
+        scope = let.parent;
+        return null;
+    }
+
+    @Override
+    public Void visit(LambdaExp e, Env env) {
+        Scope captures = new Scope(scope, null, 0);
+        captures.captured = new ArrayList<>();
+        captures.addresses = new ArrayList<>();
+        scope = new Scope(captures, e.names(), e.names().length);
+        e.body().accept(this, env);
+        scope = captures.parent;
+
+        int n = captures.captured.size();
+        int[] depths = new int[n], indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            depths[i] = captures.addresses.get(i)[0];
+            indexes[i] = captures.addresses.get(i)[1];
+        }
+        e.setCaptures(captures.captured.toArray(new String[0]), depths, indexes);
+        return null;
+    }
+
+    @Override
+    public Void visit(CallExp e, Env env) {
+        e.e().accept(this, env);
+        resolveAll(e.args(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(IfExp e, Env env) {
+        e.cond().accept(this, env);
+        e.t_exp().accept(this, env);
+        e.f_exp().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(EqualExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(GtExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(LtExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(AndExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(OrExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(BoolExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(PairExp e, Env env) {
+        e.first().accept(this, env);
+        e.second().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(FirstExp e, Env env) {
+        e.exp().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(SecondExp e, Env env) {
+        e.exp().accept(this, env);
+        return null;
+    }
+
+    @Override
+    public Void visit(ListExp e, Env env) {
+        resolveAll(e.all(), env);
+        return null;
+    }
+
+    @Override
+    public Void visit(AppendExp a, Env env) {
+        a.e().accept(this, env);
+        a.list().accept(this, env);
+        return null;
+    }
+}
@@ -0,0 +1,177 @@
+package arithlang;
+
+import arithlang.AST.Program;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the interpreter to local clients, on a TCP port of the loopback address or on a Unix
+ * domain socket. Each connection is a session with an Evaluator of its own, forked from one that
+ * has run the inbuilt definitions: sessions share those, and see only their own definitions.
+ *
+ * A request is a line, as in the REPL: a program, or "run" and the name of a file in the
+ * examples directory. The reply is a line too: "ok", the microseconds taken to parse and
+ * evaluate the request, and the value; or "error", the microseconds, and the message.
+ *
+ * Sessions run on a fixed number of threads, each serving one session at a time. Connections
+ * beyond those wait in a bounded queue, and are refused when it is full.
+ *
+ * Usage: Server [--port=n | --socket=file] [--threads=n] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--antlr]
+ */
+public class Server implements AutoCloseable {
+    static final int DEFAULT_PORT = 7777;
+    static final int DEFAULT_THREADS = 64;
+    private static final String USAGE = "Usage: Server [--port=n | --socket=file] [--threads=n] [--snapshot[=file]] [--parallel[=n]] [--speculate] [--antlr]";
+
+    private final Reader reader;
+    private final Evaluator prelude;
+    private final ServerSocketChannel channel;
+    private final ThreadPoolExecutor sessions;
+
+    /** A server for the sessions accepted from channel, forked from prelude. */
+    public Server(Reader reader, Evaluator prelude, ServerSocketChannel channel, int threads, int queued) {
+        this.reader = reader;
+        this.prelude = prelude;
+        this.channel = channel;
+        this.sessions = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queued));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String bad = Interpreter.badNumber(args);
+        if (bad != null) {
+            System.err.println(bad);
+            System.err.println(USAGE);
+            return;
+        }
+        try (Reader reader = new Reader(Interpreter.parser(args))) {
+            Evaluator prelude = new Evaluator(Interpreter.strategy(args), Interpreter.pool(args));
+            Interpreter.prelude(reader, prelude, new Printer(), Interpreter.snapshotFile(args));
+
+            int threads = DEFAULT_THREADS;
+            for (String arg : args) if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+
+            try (Server server = new Server(reader, prelude, bind(args), threads, threads)) {
+                System.out.println("Listening on " + server.channel.getLocalAddress());
+                server.serve();
+            }
+        }
+    }
+
+    // --socket=file listens on a Unix domain socket, --port=n on a loopback port
+    static ServerSocketChannel bind(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        for (String arg : args) {
+            if (arg.startsWith("--socket=")) {
+                Path file = Path.of(arg.substring("--socket=".length()));
+                // a socket left behind by an earlier server, but never any other kind of file
+                if (Files.exists(file, LinkOption.NOFOLLOW_LINKS) && Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) Files.delete(file);
+                ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                channel.bind(UnixDomainSocketAddress.of(file));
+                return channel;
+            }
+            if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring("--port=".length()));
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return channel;
+    }
+
+    /** Accepts sessions until the server is closed. */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            try {
+                sessions.execute(() -> session(client));
+            } catch (RejectedExecutionException e) {
+                try (client) {
+                    client.write(StandardCharsets.UTF_8.encode("error 0 Too many sessions, try again later\n"));
+                }
+            }
+        }
+    }
+
+    private void session(SocketChannel client) {
+        Evaluator eval = prelude.fork();
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)) {
+            String request;
+            while ((request = in.readLine()) != null) {
+                out.write(reply(eval, request));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client has gone, and the session with it
+        }
+    }
+
+    /** Evaluates one request in the session of eval, returning the reply. */
+    String reply(Evaluator eval, String request) {
+        long start = System.nanoTime();
+        String reply;
+        try {
+            Program p = program(request);
+            reply = "";
+            if (p.e() != null) {
+                long evaluating = System.nanoTime();
+                Value v = eval.valueOf(p);
+                long printing = System.nanoTime();
+                Metrics.EVALUATE.record(printing - evaluating);
+                reply = v.toString();
+                Metrics.PRINT.record(System.nanoTime() - printing);
+            }
+            reply = "ok " + (System.nanoTime() - start) / 1000 + " " + reply;
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            Metrics.error();
+            reply = "error " + (System.nanoTime() - start) / 1000 + " " + (e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        return reply.replace('\n', ' ');
+    }
+
+    // the program of a request, parsing the file of a run request, which must be an example
+    private Program program(String request) throws IOException {
+        if (request.startsWith("run ")) {
+            Path examples = reader.programFile("run ").toAbsolutePath().normalize();
+            if (!reader.programFile(request).toAbsolutePath().normalize().startsWith(examples)) {
+                throw new InterpreterException("Can only run files in " + examples);
+            }
+        }
+        return reader.run(request);
+    }
+
+    @Override
+    public void close() throws IOException {
+        SocketAddress address = channel.isOpen() ? channel.getLocalAddress() : null;
+        channel.close();
+        sessions.shutdownNow();
+        if (address instanceof UnixDomainSocketAddress a) Files.deleteIfExists(a.getPath());
+    }
+}
@@ -0,0 +1,600 @@
+package arithlang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static arithlang.AST.*;
+import static arithlang.Value.*;
+import static arithlang.Env.*;
+
+/**
+ * A binary image of some programs and of the global definitions they made, so that a prelude
+ * can be loaded without reading, parsing or evaluating its source.
+ *
+ * The image starts with a magic number, a format version, a checksum of the source it was
+ * made from, and the length and CRC-32 of the rest; a snapshot whose checksum does not match,
+ * or that is truncated or corrupt, is ignored. Then come the programs and
+ * the name and value of each definition. Every node is a tag byte followed by its fields.
+ * Strings, expressions, values and environments are written once and referred to by number
+ * afterwards, so a closure shares its body with the program that defined it and values shared
+ * between definitions stay shared.
+ *
+ * Resolved variables keep their lexical address, except that globals are written by name and
+ * get the slot of this process when read.
+ */
+@SuppressWarnings("rawtypes")
+public final class Snapshot {
+    private static final int MAGIC = 0x414C534E; // "ALSN"
+    private static final int VERSION = 6;
+    // the magic number, version, checksum, and the length and CRC of the rest
+    private static final int HEADER = 28;
+
+    private static final byte REF = 0, PROGRAM = 1, DEF = 2, UNIT = 3, NUM = 4, ADD = 5, SUB = 6, MULT = 7, DIV = 8,
+            INT_DIV = 9, POW = 10, VAR = 11, LET = 12, LAMBDA = 13, CALL = 14, IF = 15, EQUAL = 16, GT = 17, LT = 18,
+            AND = 19, OR = 20, BOOL = 21, PAIR = 22, FIRST = 23, SECOND = 24, LIST = 25, APPEND = 26;
+    private static final byte NUM_VAL = 40, TRUE_VAL = 41, FALSE_VAL = 42, UNIT_VAL = 43, FUNC_VAL = 44, PAIR_VAL = 45,
+            LIST_VAL = 46, EMPTY_LIST = 47, BUILTIN = 48;
+    private static final byte GLOBAL_ENV = 60, EMPTY_ENV = 61, FRAME_ENV = 62, UNBOUND = 63;
+
+    // the image after its header
+    private final ByteBuffer image;
+
+    private Snapshot(ByteBuffer image) {
+        this.image = image;
+    }
+
+    /**
+     * Writes programs and the definitions they left in globals to file. The file is replaced
+     * atomically, so a concurrent reader sees either the old snapshot or the new one.
+     */
+    public static void write(Path file, long checksum, List<Program> programs, GlobalEnv globals) throws IOException {
+        Writer w = new Writer();
+        w.putInt(MAGIC);
+        w.putInt(VERSION);
+        w.putLong(checksum);
+        // the length and CRC of the image, filled in once it is written
+        w.putLong(0);
+        w.putInt(0);
+        w.putInt(programs.size());
+        for (Program p : programs) p.accept(w, null);
+        List<DefDecl> defs = new ArrayList<>();
+        for (Program p : programs) defs.addAll(p.defs());
+        w.putInt(defs.size());
+        for (DefDecl d : defs) {
+            w.string(d.name());
+            w.value(globals.peek(d.name()));
+        }
+
+        ByteBuffer buf = w.buf.flip();
+        ByteBuffer image = buf.slice(HEADER, buf.limit() - HEADER);
+        buf.putLong(16, image.remaining()).putInt(24, crc(image));
+
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps file into memory and checks its header. Returns null if there is no such file, if it
+     * was made by another version or from a source with another checksum, or if its length or
+     * CRC do not match its contents.
+     */
+    public static Snapshot read(Path file, long checksum) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != checksum) return null;
+        long length = buf.getLong();
+        int crc = buf.getInt();
+        ByteBuffer image = buf.slice();
+        if (image.remaining() != length || crc(image) != crc) return null;
+        return new Snapshot(image);
+    }
+
+    private static int crc(ByteBuffer image) {
+        CRC32 crc = new CRC32();
+        crc.update(image.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /** Reads the programs of the snapshot. */
+    public List<Program> programs() {
+        return new Loader(image.duplicate(), new GlobalEnv()).programs();
+    }
+
+    /**
+     * Loads the snapshot into backend and returns its programs with their values. The Evaluator
+     * gets the saved definitions as they are and only runs the main expressions; other backends
+     * run the programs, which still saves reading and parsing them.
+     *
+     * The whole image is decoded before anything is defined, so a snapshot that cannot be
+     * decoded, which throws a RuntimeException, leaves backend as it was.
+     */
+    public List<Map.Entry<Program, Value>> load(Backend backend) {
+        List<Map.Entry<Program, Value>> results = new ArrayList<>();
+        if (backend instanceof Evaluator ev) {
+            Loader loader = new Loader(image.duplicate(), ev.globals());
+            List<Program> programs = loader.programs();
+            Map<String, Value> definitions = loader.definitions();
+            define(ev.globals(), definitions);
+            for (Program p : programs) results.add(Map.entry(p, ev.valueOf(new Program(List.of(), p.e()))));
+        } else {
+            for (Program p : programs()) results.add(Map.entry(p, backend.valueOf(p)));
+        }
+        return results;
+    }
+
+    // defines all of definitions in globals, or none of them if one of the names is taken
+    private static void define(GlobalEnv globals, Map<String, Value> definitions) {
+        for (String name : definitions.keySet()) {
+            if (globals.defines(name)) throw new InterpreterException("Re-declaration of variable " + name + " in snapshot");
+        }
+        definitions.forEach(globals::extend);
+    }
+
+    /** Writes programs and values into a growing buffer. */
+    private static final class Writer implements AST.Visitor<Void> {
+        private ByteBuffer buf = ByteBuffer.allocate(1 << 14);
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private ByteBuffer room(int n) {
+            if (buf.remaining() < n) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+                buf = grown.put(buf.flip());
+            }
+            return buf;
+        }
+
+        void putByte(int b) { room(1).put((byte) b); }
+        void putInt(int i) { room(4).putInt(i); }
+        void putLong(long l) { room(8).putLong(l); }
+        void putDouble(double d) { room(8).putDouble(d); }
+
+        void string(String s) {
+            Integer id = strings.get(s);
+            if (id != null) {
+                putInt(id);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(-1 - bytes.length);
+            room(bytes.length).put(bytes);
+        }
+
+        // writes a reference if o was written before, otherwise numbers it and returns false
+        private boolean seen(Object o) {
+            Integer id = ids.get(o);
+            if (id != null) {
+                putByte(REF);
+                putInt(id);
+                return true;
+            }
+            ids.put(o, ids.size());
+            return false;
+        }
+
+        private Void compound(byte tag, CompoundExp e) {
+            putByte(tag);
+            all(e.all());
+            return null;
+        }
+
+        private void all(List<Exp> exps) {
+            putInt(exps.size());
+            for (Exp exp : exps) exp(exp);
+        }
+
+        private void exp(Exp e) {
+            if (!seen(e)) e.accept(this, null);
+        }
+
+        void value(Value v) {
+            if (v instanceof PromiseVal p) {
+                if (!p.isForced()) throw new InterpreterException("Cannot save a promise that has not been forced: " + p);
+                v = p.toAssignableValue();
+            }
+            if (v instanceof BoolVal b) {
+                putByte(b.v() ? TRUE_VAL : FALSE_VAL);
+            } else if (v instanceof UnitVal) {
+                putByte(UNIT_VAL);
+            } else if (v == ListVal.EMPTY_LIST) {
+                putByte(EMPTY_LIST);
+            } else if (v instanceof NumVal n) {
+                putByte(NUM_VAL);
+                putDouble(n.v());
+            } else if (v instanceof FuncVal f && f.body() instanceof Builtins.Builtin b) {
+                putByte(BUILTIN);
+                string(b.name());
+            } else if (v instanceof FuncVal f) {
+                // the environment comes first, so a closure is complete whenever it is referred to
+                putByte(FUNC_VAL);
+                env(f.env());
+                if (seen(f)) return;
+                putByte(FUNC_VAL);
+                putInt(f.names().length);
+                for (String param : f.params()) string(param);
+                exp(f.body());
+            } else if (!seen(v)) {
+                if (v instanceof PairVal p) {
+                    putByte(PAIR_VAL);
+                    value(p.first());
+                    value(p.second());
+                } else if (v instanceof ListVal l) {
+                    putByte(LIST_VAL);
+                    putInt(l.size());
+                    for (AssignableValue item : l) value(item);
+                } else {
+                    throw new InterpreterException("Cannot save value " + v);
+                }
+            }
+        }
+
+        void env(Env env) {
+            if (env instanceof GlobalEnv) {
+                putByte(GLOBAL_ENV);
+            } else if (env instanceof EmptyEnv) {
+                putByte(EMPTY_ENV);
+            } else if (env instanceof FrameEnv f) {
+                if (seen(f)) return;
+                putByte(FRAME_ENV);
+                env(f.nestedEnv());
+                String[] names = f.names();
+                putInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    string(names[i]);
+                    Value val = f.peek(0, i);
+                    if (val == null) putByte(UNBOUND);
+                    else value(val);
+                }
+            } else {
+                throw new InterpreterException("Cannot save environment " + env);
+            }
+        }
+
+        public Void visit(Program p, Env env) {
+            putByte(PROGRAM);
+            putInt(p.defs().size());
+            for (DefDecl d : p.defs()) d.accept(this, env);
+            exp(p.e());
+            putByte(p.resolved() ? 1 : 0);
+            return null;
+        }
+
+        public Void visit(DefDecl d, Env env) {
+            putByte(DEF);
+            string(d.name());
+            exp(d.exp());
+            return null;
+        }
+
+        public Void visit(UnitExp e, Env env) {
+            putByte(UNIT);
+            return null;
+        }
+
+        public Void visit(NumExp e, Env env) {
+            putByte(NUM);
+            putDouble(e.v().v());
+            return null;
+        }
+
+        public Void visit(AddExp e, Env env) { return compound(ADD, e); }
+
+        public Void visit(SubExp e, Env env) { return compound(SUB, e); }
+
+        public Void visit(MultExp e, Env env) { return compound(MULT, e); }
+
+        public Void visit(DivExp e, Env env) { return compound(DIV, e); }
+
+        public Void visit(IntDivExp e, Env env) { return compound(INT_DIV, e); }
+
+        public Void visit(PowExp e, Env env) { return compound(POW, e); }
+
+        public Void visit(VarExp e, Env env) {
+            putByte(VAR);
+            string(e.name());
+            putInt(e.depth());
+            putInt(e.depth() == VarExp.GLOBAL ? 0 : e.index());
+            return null;
+        }
+
+        public Void visit(LetExp e, Env env) {
+            putByte(LET);
+            putInt(e.names().length);
+            for (int i = 0; i < e.names().length; i++) {
+                string(e.names()[i]);
+                exp(e.exps()[i]);
+            }
+            exp(e.getBody());
+            return null;
+        }
+
+        public Void visit(LambdaExp e, Env env) {
+            putByte(LAMBDA);
+            putInt(e.params().size());
+            for (String param : e.params()) string(param);
+            exp(e.body());
+            String[] captured = e.captured();
+            putInt(captured == null ? -1 : captured.length);
+            for (int i = 0; captured != null && i < captured.length; i++) {
+                string(captured[i]);
+                putInt(e.captureDepths()[i]);
+                putInt(e.captureIndexes()[i]);
+            }
+            return null;
+        }
+
+        public Void visit(CallExp e, Env env) {
+            putByte(CALL);
+            exp(e.e());
+            all(e.args());
+            return null;
+        }
+
+        public Void visit(IfExp e, Env env) {
+            putByte(IF);
+            exp(e.cond());
+            exp(e.t_exp());
+            exp(e.f_exp());
+            return null;
+        }
+
+        public Void visit(EqualExp e, Env env) { return compound(EQUAL, e); }
+
+        public Void visit(GtExp e, Env env) { return compound(GT, e); }
+
+        public Void visit(LtExp e, Env env) { return compound(LT, e); }
+
+        public Void visit(AndExp e, Env env) { return compound(AND, e); }
+
+        public Void visit(OrExp e, Env env) { return compound(OR, e); }
+
+        public Void visit(BoolExp e, Env env) {
+            putByte(BOOL);
+            putByte(e.v().v() ? 1 : 0);
+            return null;
+        }
+
+        public Void visit(PairExp e, Env env) {
+            putByte(PAIR);
+            exp(e.first());
+            exp(e.second());
+            return null;
+        }
+
+        public Void visit(FirstExp e, Env env) {
+            putByte(FIRST);
+            exp(e.exp());
+            return null;
+        }
+
+        public Void visit(SecondExp e, Env env) {
+            putByte(SECOND);
+            exp(e.exp());
+            return null;
+        }
+
+        public Void visit(ListExp e, Env env) {
+            putByte(LIST);
+            all(e.all());
+            return null;
+        }
+
+        public Void visit(AppendExp e, Env env) {
+            putByte(APPEND);
+            exp(e.e());
+            exp(e.list());
+            return null;
+        }
+    }
+
+    /**
+     * Reads programs and values back, numbering objects in the order they were written. A frame
+     * is numbered before its bindings are read, as a closure bound in it may have captured it.
+     */
+    private static final class Loader {
+        private final ByteBuffer buf;
+        private final GlobalEnv globals;
+        private final List<Object> objects = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+
+        Loader(ByteBuffer buf, GlobalEnv globals) {
+            this.buf = buf;
+            this.globals = globals;
+        }
+
+        List<Program> programs() {
+            int n = buf.getInt();
+            List<Program> programs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) programs.add(program());
+            return programs;
+        }
+
+        /** Reads the saved definitions, in the order they were made. */
+        Map<String, Value> definitions() {
+            int n = buf.getInt();
+            Map<String, Value> definitions = new LinkedHashMap<>();
+            for (int i = 0; i < n; i++) {
+                String name = string();
+                definitions.put(name, value(buf.get()));
+            }
+            return definitions;
+        }
+
+        private String string() {
+            int id = buf.getInt();
+            if (id >= 0) return strings.get(id);
+            byte[] bytes = new byte[-1 - id];
+            buf.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        private int reserve() {
+            objects.add(null);
+            return objects.size() - 1;
+        }
+
+        private <T> T define(int id, T o) {
+            objects.set(id, o);
+            return o;
+        }
+
+        private Program program() {
+            expect(PROGRAM);
+            int n = buf.getInt();
+            List<DefDecl> defs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                expect(DEF);
+                defs.add(new DefDecl(string(), exp()));
+            }
+            Program p = new Program(defs, exp());
+            if (buf.get() != 0) p.markResolved();
+            return p;
+        }
+
+        private void expect(byte tag) {
+            byte b = buf.get();
+            if (b != tag) throw new IllegalStateException("Expected tag " + tag + " but found " + b);
+        }
+
+        private List<Exp> all() {
+            int n = buf.getInt();
+            ArrayList<Exp> exps = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) exps.add(exp());
+            return exps;
+        }
+
+        private Exp exp() {
+            byte tag = buf.get();
+            if (tag == REF) return (Exp) objects.get(buf.getInt());
+            int id = reserve();
+            return define(id, switch (tag) {
+                case UNIT -> new UnitExp();
+                case NUM -> new NumExp(buf.getDouble());
+                case ADD -> new AddExp(all());
+                case SUB -> new SubExp(all());
+                case MULT -> new MultExp(all());
+                case DIV -> new DivExp(all());
+                case INT_DIV -> new IntDivExp(all());
+                case POW -> new PowExp(all());
+                case VAR -> {
+                    VarExp v = new VarExp(string());
+                    int depth = buf.getInt(), index = buf.getInt();
+                    if (depth == VarExp.GLOBAL) index = GlobalEnv.slotOf(v.name());
+                    if (depth != VarExp.UNRESOLVED) v.setAddress(depth, index);
+                    yield v;
+                }
+                case LET -> {
+                    int n = buf.getInt();
+                    LinkedHashMap<String, Exp> decls = new LinkedHashMap<>();
+                    for (int i = 0; i < n; i++) decls.put(string(), exp());
+                    yield new LetExp(decls, exp());
+                }
+                case LAMBDA -> {
+                    LambdaExp l = new LambdaExp(params(), exp());
+                    int n = buf.getInt();
+                    if (n >= 0) {
+                        String[] captured = new String[n];
+                        int[] depths = new int[n], indexes = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            captured[i] = string();
+                            depths[i] = buf.getInt();
+                            indexes[i] = buf.getInt();
+                        }
+                        l.setCaptures(captured, depths, indexes);
+                    }
+                    yield l;
+                }
+                case CALL -> new CallExp(exp(), (ArrayList<Exp>) all());
+                case IF -> new IfExp(exp(), exp(), exp());
+                case EQUAL -> new EqualExp(all());
+                case GT -> new GtExp(all());
+                case LT -> new LtExp(all());
+                case AND -> new AndExp(all());
+                case OR -> new OrExp(all());
+                case BOOL -> new BoolExp(buf.get() != 0 ? "#t" : "#f");
+                case PAIR -> new PairExp(exp(), exp());
+                case FIRST -> new FirstExp(exp());
+                case SECOND -> new SecondExp(exp());
+                case LIST -> new ListExp((ArrayList<Exp>) all());
+                case APPEND -> new AppendExp(exp(), exp());
+                default -> throw new IllegalStateException("Unknown expression tag " + tag);
+            });
+        }
+
+        private ArrayList<String> params() {
+            int n = buf.getInt();
+            ArrayList<String> params = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) params.add(string());
+            return params;
+        }
+
+        private Value value(byte tag) {
+            switch (tag) {
+                case REF: return (Value) objects.get(buf.getInt());
+                case NUM_VAL: return NumVal.valueOf(buf.getDouble());
+                case TRUE_VAL: return BoolVal.TrueVal;
+                case FALSE_VAL: return BoolVal.FalseVal;
+                case UNIT_VAL: return UnitVal.UNIT_VAL;
+                case EMPTY_LIST: return ListVal.EMPTY_LIST;
+                case BUILTIN: return Builtins.get(string());
+            }
+            if (tag == FUNC_VAL) {
+                Env env = env();
+                if (buf.get() == REF) return (Value) objects.get(buf.getInt());
+                int id = reserve();
+                ArrayList<String> params = params();
+                return define(id, new FuncVal(exp(), params, env));
+            }
+            int id = reserve();
+            return define(id, switch (tag) {
+                case PAIR_VAL -> new PairVal((AssignableValue) value(buf.get()), (AssignableValue) value(buf.get()));
+                case LIST_VAL -> {
+                    AssignableValue[] items = new AssignableValue[buf.getInt()];
+                    for (int i = 0; i < items.length; i++) items[i] = (AssignableValue) value(buf.get());
+                    yield ListVal.of(items);
+                }
+                default -> throw new IllegalStateException("Unknown value tag " + tag);
+            });
+        }
+
+        private Env env() {
+            byte tag = buf.get();
+            switch (tag) {
+                case REF: return (Env) objects.get(buf.getInt());
+                case GLOBAL_ENV: return globals;
+                case EMPTY_ENV: return EmptyEnv.EMPTY;
+                case FRAME_ENV: break;
+                default: throw new IllegalStateException("Unknown environment tag " + tag);
+            }
+            int id = reserve();
+            Env nested = env();
+            String[] names = new String[buf.getInt()];
+            FrameEnv frame = define(id, new FrameEnv(nested, names, new Value[names.length]));
+            for (int i = 0; i < names.length; i++) {
+                names[i] = string();
+                byte t = buf.get();
+                if (t != UNBOUND) frame.set(i, value(t));
+            }
+            return frame;
+        }
+    }
+}
@@ -3,7 +3,10 @@ package arithlang;
 import com.ibm.icu.impl.Pair;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Value{
     protected abstract String string();
@@ -26,7 +29,7 @@ public abstract class Value{
     }
 
     public interface Compareable {
-        default NumVal comp(Equaleable equal){ throw new InterpreterException(this.getClass() + "Assignable has not been Compareable extended") ; }
+        default double comp(Equaleable equal){ throw new InterpreterException(this.getClass() + "Assignable has not been Compareable extended") ; }
     }
 
     public interface Equaleable {
@@ -37,17 +40,32 @@ public abstract class Value{
     }
 
     public static final class NumVal extends AssignableValue {
+        // small integers are interned, like Integer.valueOf does
+        private static final int CACHE_LOW = -128, CACHE_HIGH = 1024;
+        private static final NumVal[] CACHE = new NumVal[CACHE_HIGH - CACHE_LOW + 1];
+        static {
+            for (int i = 0; i < CACHE.length; i++) CACHE[i] = new NumVal(i + CACHE_LOW);
+        }
+
         private final double _val;
 
         public NumVal(double v) {
             _val = v;
         }
 
+        /** Returns the interned NumVal for small integers, and a new one otherwise. */
+        public static NumVal valueOf(double v) {
+            int i = (int) v;
+            // -0.0 is kept apart from 0 as it divides to -Infinity
+            if (i == v && i >= CACHE_LOW && i <= CACHE_HIGH && (i != 0 || Double.doubleToRawLongBits(v) == 0L)) return CACHE[i - CACHE_LOW];
+            return new NumVal(v);
+        }
+
         public double v() {
             return _val;
         }
 
-        public BoolVal toBool(){ return new BoolVal(!(_val == 0)); }
+        public BoolVal toBool(){ return _val == 0 ? BoolVal.FalseVal : BoolVal.TrueVal; }
 
         public BoolVal eq(Equaleable o) {
             if(o == this) return BoolVal.TrueVal;
@@ -57,10 +75,10 @@ public abstract class Value{
             else return BoolVal.FalseVal;
         }
 
-        public NumVal comp(Equaleable o) {
-            if(o == this) return new NumVal(0);
+        public double comp(Equaleable o) {
+            if(o == this) return 0;
             if(!(o instanceof NumVal)) throw new InterpreterException("comparing objects of diff types");
-            return new NumVal(_val - ((NumVal) o)._val);
+            return _val - ((NumVal) o)._val;
         }
 
         protected String string() {
@@ -68,6 +86,12 @@ public abstract class Value{
             if (_val == ((double) tmp)) return "" + tmp;
             else return ""+_val;
         }
+
+        static void format(StringBuilder sb, double v) {
+            int tmp = (int) v;
+            if (v == ((double) tmp)) sb.append(tmp);
+            else sb.append(v);
+        }
     }
 
     public static final class BoolVal extends AssignableValue {
@@ -98,18 +122,44 @@ public abstract class Value{
     public static final class FuncVal extends AssignableValue{
         private final AST.Exp _body;
         private final ArrayList<String> _params;
+        private final String[] _names;
         private final Env _env;
 
 
         public FuncVal(AST.Exp body, ArrayList<String> params, Env env){
+            this(body, params, Objects.requireNonNull(params, "Function params cannot be null").toArray(new String[0]), env);
+        }
 
+        public FuncVal(AST.LambdaExp lambda, Env env){
+            this(lambda.body(), lambda.params(), lambda.names(), env);
+        }
+
+        private FuncVal(AST.Exp body, ArrayList<String> params, String[] names, Env env){
             _body = Objects.requireNonNull(body, "Body Exp cannot be null");
             _params = Objects.requireNonNull(params, "Function params cannot be null");
+            _names = names;
             _env = Objects.requireNonNull(env, "Env cannot be null");
         }
 
+        /**
+         * A closure of lambda evaluated in env. Once the Resolver has run, it holds only the
+         * values its body uses from env, in a frame of their own, so that it does not keep
+         * the rest of env, and any promises in it, alive.
+         */
+        public static FuncVal of(AST.LambdaExp lambda, Env env){
+            String[] captured = lambda.captured();
+            if (captured == null) return new FuncVal(lambda, env);
+            if (captured.length == 0) return new FuncVal(lambda, Env.EmptyEnv.EMPTY);
+            int[] depths = lambda.captureDepths(), indexes = lambda.captureIndexes();
+            Env.FrameEnv frame = (Env.FrameEnv) env;
+            Value[] vals = new Value[captured.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = frame.peek(depths[i], indexes[i]);
+            return new FuncVal(lambda, new Env.FrameEnv(Env.EmptyEnv.EMPTY, captured, vals));
+        }
+
         public AST.Exp body() { return _body; }
         public ArrayList<String> params() { return _params; }
+        public String[] names() { return _names; }
         public Env env() { return _env; }
 
         public String string() {
@@ -142,51 +192,308 @@ public abstract class Value{
         }
     }
 
-    public static final class ListVal extends AssignableValue implements Pairable {
+    /**
+     * An immutable list, kept in arrays ("chunks") instead of one cell per element. A list is
+     * the run of elements from _start to the end of its chunk, followed by the list _rest.
+     *
+     * Consing onto a list takes the free slot just before its run, if no other list has taken
+     * it already; otherwise it starts a new chunk, twice as large when the old one is full, so
+     * a list built by consing is made of O(log n) chunks. The length is kept in every list and
+     * indexing skips whole chunks.
+     *
+     * Numbers are stored unboxed: a chunk holds either doubles or any values, and a value that
+     * does not fit the chunk of the list it is consed onto starts a new chunk.
+     */
+    public static final class ListVal extends AssignableValue implements Pairable, Iterable<AssignableValue> {
         public static final ListVal EMPTY_LIST = new ListVal();
+        private static final int MIN_CHUNK = 4;
+        private static final int MAX_CHUNK = 1 << 16;
+
+        private static final class Chunk {
+            // exactly one of the two is set
+            final AssignableValue[] items;
+            final double[] nums;
+            // the lowest slot in use; the slots below it are free to take
+            final AtomicInteger front;
+
+            Chunk(AssignableValue[] items, double[] nums, int front) {
+                this.items = items;
+                this.nums = nums;
+                this.front = new AtomicInteger(front);
+            }
+
+            static Chunk of(AssignableValue v, int length) {
+                Chunk chunk = v instanceof NumVal ? new Chunk(null, new double[length], length - 1) : new Chunk(new AssignableValue[length], null, length - 1);
+                chunk.set(length - 1, v);
+                return chunk;
+            }
+
+            int length() { return nums != null ? nums.length : items.length; }
+
+            boolean holds(AssignableValue v) { return nums == null || v instanceof NumVal; }
+
+            AssignableValue get(int i) { return nums != null ? NumVal.valueOf(nums[i]) : items[i]; }
+
+            void set(int i, AssignableValue v) {
+                if (nums != null) nums[i] = ((NumVal) v).v();
+                else items[i] = v;
+            }
+        }
 
-        private final AssignableValue _v;
-        private final ListVal _sub;
+        private final Chunk _chunk;
+        private final int _start;
+        private final ListVal _rest;
+        private final int _size;
+        // the list returned by second(), made on first use
+        private ListVal _second;
 
         public ListVal(AssignableValue v, ListVal sub){
-            _v = Objects.requireNonNull(v, "Value cannot be null");
-            _sub = Objects.requireNonNull(sub, "Sublist cannot be null");
+            Objects.requireNonNull(v, "Value cannot be null");
+            Objects.requireNonNull(sub, "Sublist cannot be null");
+            Chunk chunk = sub._chunk;
+            int start = sub._start;
+            if (chunk != null && start > 0 && chunk.holds(v) && chunk.front.compareAndSet(start, start - 1)) {
+                chunk.set(start - 1, v);
+                _chunk = chunk;
+                _start = start - 1;
+                _rest = sub._rest;
+            } else {
+                int n = chunk != null && start == 0 && chunk.holds(v) ? Math.min(chunk.length() * 2, MAX_CHUNK) : MIN_CHUNK;
+                _chunk = Chunk.of(v, n);
+                _start = n - 1;
+                _rest = sub;
+            }
+            _size = sub._size + 1;
+        }
+
+        private ListVal(Chunk chunk, int start, ListVal rest, int size) {
+            _chunk = chunk;
+            _start = start;
+            _rest = rest;
+            _size = size;
         }
 
         private ListVal() {
-            _v = null;
-            _sub = null;
+            this(null, 0, null, 0);
+        }
+
+        /**
+         * Returns the list of items, items[0] being its first element. The array is not copied,
+         * unless it holds only numbers, which are then packed into a double[].
+         */
+        public static ListVal of(AssignableValue[] items) {
+            if (items.length == 0) return EMPTY_LIST;
+            double[] nums = new double[items.length];
+            for (int i = 0; i < items.length; i++) {
+                if (!(items[i] instanceof NumVal n)) return new ListVal(new Chunk(items, null, 0), 0, EMPTY_LIST, items.length);
+                nums[i] = n.v();
+            }
+            return of(nums);
+        }
+
+        /** Returns the list of nums, nums[0] being its first element. The array is not copied. */
+        public static ListVal of(double[] nums) {
+            if (nums.length == 0) return EMPTY_LIST;
+            return new ListVal(new Chunk(null, nums, 0), 0, EMPTY_LIST, nums.length);
+        }
+
+        public int size() { return _size; }
+
+        public AssignableValue first() { return _chunk == null ? null : _chunk.get(_start); }
+
+        public AssignableValue second() {
+            if (_chunk == null) return null;
+            if (_start + 1 == _chunk.length()) return _rest;
+            ListVal second = _second;
+            if (second == null) _second = second = new ListVal(_chunk, _start + 1, _rest, _size - 1);
+            return second;
+        }
+
+        /** Returns the element at index, counting from first() at 0. */
+        public AssignableValue get(int index) {
+            if (index < 0 || index >= _size) throw new InterpreterException("Index " + index + " out of bounds for a list of length " + _size);
+            ListVal list = this;
+            while (index >= list._chunk.length() - list._start) {
+                index -= list._chunk.length() - list._start;
+                list = list._rest;
+            }
+            return list._chunk.get(list._start + index);
+        }
+
+        /** Iterates over the elements from first() on, a chunk at a time. */
+        @Override
+        public Iterator<AssignableValue> iterator() {
+            return new Iterator<>() {
+                private ListVal list = ListVal.this;
+                private int i = _start;
+
+                public boolean hasNext() { return list != EMPTY_LIST; }
+
+                public AssignableValue next() {
+                    if (list == EMPTY_LIST) throw new NoSuchElementException();
+                    Chunk chunk = list._chunk;
+                    AssignableValue item = chunk.get(i++);
+                    if (i == chunk.length()) {
+                        list = list._rest;
+                        i = list._start;
+                    }
+                    return item;
+                }
+            };
         }
 
-        public AssignableValue first() { return _v; }
-        public AssignableValue second() { return _sub; }
+        /**
+         * Returns the sum of the elements, which must all be numbers. Element i is added to lane
+         * i % 4, and packed chunks are added four at a time into independent running totals the
+         * JIT can keep in parallel (and in SIMD registers) instead of one long chain of additions.
+         * The result does not depend on how the list is chunked, though with fractions it may
+         * differ in the last bits from adding the elements one by one.
+         */
+        public double sum() {
+            double[] lanes = new double[4];
+            int k = 0;
+            for (ListVal list = this; list != EMPTY_LIST; list = list._rest) {
+                Chunk chunk = list._chunk;
+                int i = list._start, end = chunk.length();
+                if (chunk.nums == null) {
+                    for (; i < end; i++, k++) {
+                        if (!(chunk.items[i] instanceof NumVal n)) throw new InterpreterException("Cannot sum a list holding " + chunk.items[i]);
+                        lanes[k & 3] += n.v();
+                    }
+                    continue;
+                }
+                double[] nums = chunk.nums;
+                for (; i < end && (k & 3) != 0; i++, k++) lanes[k & 3] += nums[i];
+                double s0 = lanes[0], s1 = lanes[1], s2 = lanes[2], s3 = lanes[3];
+                for (; i + 3 < end; i += 4, k += 4) {
+                    s0 += nums[i];
+                    s1 += nums[i + 1];
+                    s2 += nums[i + 2];
+                    s3 += nums[i + 3];
+                }
+                lanes[0] = s0; lanes[1] = s1; lanes[2] = s2; lanes[3] = s3;
+                for (; i < end; i++, k++) lanes[k & 3] += nums[i];
+            }
+            return (lanes[0] + lanes[1]) + (lanes[2] + lanes[3]);
+        }
+
+        /** Returns the list of the same elements in reverse order, packed in a single chunk. */
+        public ListVal reverse() {
+            if (this == EMPTY_LIST) return this;
+            boolean packed = true;
+            for (ListVal list = this; list != EMPTY_LIST; list = list._rest) packed &= list._chunk.nums != null;
+
+            int j = _size;
+            if (packed) {
+                double[] nums = new double[_size];
+                for (ListVal list = this; list != EMPTY_LIST; list = list._rest) {
+                    double[] from = list._chunk.nums;
+                    for (int i = list._start; i < from.length; i++) nums[--j] = from[i];
+                }
+                return of(nums);
+            }
+            AssignableValue[] items = new AssignableValue[_size];
+            for (ListVal list = this; list != EMPTY_LIST; list = list._rest) {
+                Chunk chunk = list._chunk;
+                for (int i = list._start; i < chunk.length(); i++) items[--j] = chunk.get(i);
+            }
+            return new ListVal(new Chunk(items, null, 0), 0, EMPTY_LIST, items.length);
+        }
 
         public BoolVal toBool() { return (this == EMPTY_LIST) ? BoolVal.FalseVal : BoolVal.TrueVal; }
 
         public String string() {
             StringBuilder result = new StringBuilder("ListVal( ");
-            for(ListVal cur = this; cur != ListVal.EMPTY_LIST; cur = cur._sub) result.append(Objects.requireNonNull(cur)._v).append(" ");
+            for (ListVal list = this; list != ListVal.EMPTY_LIST; list = list._rest) {
+                Chunk chunk = list._chunk;
+                for (int i = list._start; i < chunk.length(); i++) {
+                    // formats a number as NumVal.string() does, without boxing it
+                    if (chunk.nums != null) NumVal.format(result, chunk.nums[i]);
+                    else result.append(chunk.items[i]);
+                    result.append(" ");
+                }
+            }
             return result + ")";
         }
     }
 
     public static final class PromiseVal extends Value{
-        private final AST.Visitor _visitor;
-        private final AST.Exp _exp;
-        private final Env _env;
+        private AST.Visitor _visitor;
+        private AST.Exp _exp;
+        private Env _env;
+        private final boolean _memoize;
+        private volatile AssignableValue _value;
 
         public PromiseVal(AST.Visitor visitor, AST.Exp exp, Env env){
+            this(visitor, exp, env, false);
+        }
+
+        /**
+         * A memoizing promise (call by need) evaluates its expression at most once; after being
+         * forced it drops the captured visitor, expression and env so they can be collected.
+         */
+        public PromiseVal(AST.Visitor visitor, AST.Exp exp, Env env, boolean memoize){
             _visitor = Objects.requireNonNull(visitor, "visitor cannot be null");
             _exp = Objects.requireNonNull(exp, "exp value cannot be null");
             _env = Objects.requireNonNull(env, "env Value cannot be null");
+            _memoize = memoize;
+            Metrics.promise();
+        }
+
+        /**
+         * A memoizing promise for an expression that evaluates itself without a visitor, such as
+         * the units of code generated by the Compiler.
+         */
+        public PromiseVal(AST.Exp exp, Env env){
+            this(exp, env, true);
+        }
+
+        /** A promise for an expression that evaluates itself, memoizing or not as for call by need or name. */
+        public PromiseVal(AST.Exp exp, Env env, boolean memoize){
+            _exp = Objects.requireNonNull(exp, "exp value cannot be null");
+            _env = Objects.requireNonNull(env, "env Value cannot be null");
+            _memoize = memoize;
+            Metrics.promise();
         }
 
         public AST.Exp exp() { return _exp; }
         public Env env() { return _env; }
-        public AssignableValue toAssignableValue(){ return (AssignableValue) _exp.accept(_visitor, _env); }
+        public boolean isForced() { return _value != null; }
+
+        public AssignableValue toAssignableValue(){
+            Parallel.poll();
+            if (!_memoize) {
+                Metrics.ForceEvent event = Metrics.beginForce();
+                try {
+                    return (AssignableValue) _exp.accept(_visitor, _env);
+                } finally {
+                    Metrics.forced(event, _exp, false);
+                }
+            }
+
+            AssignableValue val = _value;
+            if (val != null) return val;
+            synchronized (this) {
+                if (_value == null) {
+                    AST.Exp exp = _exp;
+                    Metrics.ForceEvent event = Metrics.beginForce();
+                    try {
+                        _value = (AssignableValue) exp.accept(_visitor, _env);
+                    } finally {
+                        Metrics.forced(event, exp, true);
+                    }
+                    _visitor = null;
+                    _exp = null;
+                    _env = null;
+                }
+                return _value;
+            }
+        }
 
         @Override
         protected String string() {
+            AssignableValue val = _value;
+            if (val != null) return "Promise<" + val + ">";
             return "Promise<" + _exp + ", " + _env + ">";
         }
     }